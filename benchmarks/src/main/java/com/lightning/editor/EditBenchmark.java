@@ -0,0 +1,71 @@
+package com.lightning.editor;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Main.setChar, as typed in insert mode. Every edit changes the level (and the
+ * prepend cases grow it), so each iteration is a fixed batch of edits on a
+ * fresh copy of the level; times are per batch of 10000.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 10, batchSize = EditBenchmark.BATCH)
+@Measurement(iterations = 20, batchSize = EditBenchmark.BATCH)
+@Fork(1)
+public class EditBenchmark {
+    static final int BATCH = 10000;
+    private static final char[] DIGITS = "0123456789ABCDEF".toCharArray();
+
+    @Param({SyntheticLevels.SMALL, SyntheticLevels.MEDIUM, SyntheticLevels.LARGE})
+    public String size;
+
+    private com.lightning.editor.Level base;
+    private int width, height;
+    private int count;
+
+    @Setup
+    public void setUp() {
+        base = SyntheticLevels.create(size);
+        width = base.getTiles().getWidth();
+        height = base.getTiles().getHeight();
+    }
+
+    @Setup(Level.Iteration)
+    public void freshLevel() {
+        Main.setLevel(base.snapshot(), null);
+        count = 0;
+    }
+
+    /** Typing over existing tiles, row by row. */
+    @Benchmark
+    public void setCharInside() {
+        int i = count++;
+        Main.setChar(i % (width*2), i / (width*2) % height, DIGITS[i & 0xF]);
+    }
+
+    /** Typing left of column 0, which prepends a column every time. */
+    @Benchmark
+    public void setCharPrependColumn() {
+        Main.setChar(-1, 0, DIGITS[count++ & 0xF]);
+    }
+
+    /** Typing above row 0, which prepends a row every time. */
+    @Benchmark
+    public void setCharPrependRow() {
+        Main.setChar(0, -1, DIGITS[count++ & 0xF]);
+    }
+}
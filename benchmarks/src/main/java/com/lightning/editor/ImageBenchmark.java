@@ -0,0 +1,55 @@
+package com.lightning.editor;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Main.saveImage with the tileset from assets/, so it must run from the
+ * project directory. The 10M level is left out: its image is 2.5 gigapixels.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageBenchmark {
+    @Param({SyntheticLevels.SMALL, SyntheticLevels.MEDIUM})
+    public String size;
+
+    private Path image;
+
+    @Setup
+    public void setUp() throws IOException {
+        Main.setLevel(SyntheticLevels.create(size), null);
+        image = Files.createTempFile("levim-bench", ".png");
+        saveImage(); // Waits for the tileset, so loading it isn't measured
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(image);
+    }
+
+    @Benchmark
+    public boolean saveImage() {
+        if(!Main.saveImage(image.toString(), 1, 1))
+            throw new IllegalStateException("Export failed");
+        return true;
+    }
+}
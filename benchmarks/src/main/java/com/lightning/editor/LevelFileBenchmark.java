@@ -0,0 +1,85 @@
+package com.lightning.editor;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Main.loadLevel and Main.saveLevel on level files in a temporary directory. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LevelFileBenchmark {
+    @Param({SyntheticLevels.SMALL, SyntheticLevels.MEDIUM, SyntheticLevels.LARGE})
+    public String size;
+
+    private Level level;
+    private Path dir, input, output;
+    private int edits;
+
+    @Setup
+    public void setUp() throws IOException {
+        level = SyntheticLevels.create(size);
+        dir = Files.createTempDirectory("levim-bench");
+        input = dir.resolve("input.lvl");
+        output = dir.resolve("output.lvl");
+        LevelWriter.write(level, input);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(input);
+        Files.deleteIfExists(output);
+        Files.deleteIfExists(dir);
+    }
+
+    /** What :l costs before the first frame; chunks are decoded as they are shown. */
+    @Benchmark
+    public Level loadLevel() {
+        Main.setLevel(null, input.toString());
+        if(!Main.loadLevel())
+            throw new IllegalStateException("Load failed");
+        return Main.getLevel();
+    }
+
+    @Benchmark
+    public Level loadLevelDecoded() {
+        Level loaded = loadLevel();
+        loaded.getTiles().decodeAll();
+        return loaded;
+    }
+
+    /** Includes the fsync and rename of the atomic save. */
+    @Benchmark
+    public boolean saveLevel() {
+        Main.setLevel(level, output.toString());
+        if(!Main.saveLevel())
+            throw new IllegalStateException("Save failed");
+        return true;
+    }
+
+    /** :w after changing one tile, which only hashes and encodes that tile's chunk again. */
+    @Benchmark
+    public boolean saveLevelAfterEdit() {
+        LevelGrid tiles = level.getTiles();
+        int x = edits++ % tiles.getWidth();
+        tiles.set(x, 0, (byte) (tiles.get(x, 0) + 1));
+        return saveLevel();
+    }
+}
@@ -0,0 +1,109 @@
+package com.lightning.editor;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.googlecode.lanterna.TerminalSize;
+import com.googlecode.lanterna.graphics.TextGraphics;
+import com.googlecode.lanterna.screen.TerminalScreen;
+import com.googlecode.lanterna.terminal.virtual.DefaultVirtualTerminal;
+
+/**
+ * Drawing frames the way Main.renderLevel does, onto a 160x50 virtual terminal,
+ * including the screen refresh that sends the changes to the terminal, in the
+ * hex view and in both colour previews.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RenderBenchmark {
+    private static final int WIDTH = 160, HEIGHT = 50;
+
+    @Param({SyntheticLevels.SMALL, SyntheticLevels.MEDIUM, SyntheticLevels.LARGE})
+    public String size;
+
+    @Param({"hex", "preview", "quarters"})
+    public String view;
+
+    private Level level;
+    private LevelGrid tiles;
+    private TerminalScreen screen;
+    private TextGraphics graphics;
+    private LevelRenderer renderer;
+    private int frame;
+
+    @Setup
+    public void setUp() throws IOException {
+        level = SyntheticLevels.create(size);
+        tiles = level.getTiles();
+        screen = new TerminalScreen(new DefaultVirtualTerminal(new TerminalSize(WIDTH, HEIGHT)));
+        screen.startScreen();
+        graphics = screen.newTextGraphics();
+        renderer = new LevelRenderer();
+        if(!view.equals("hex"))
+            renderer.setPreview(Tileset.load(Paths.get(Tileset.DEFAULT_PATH)), view.equals("quarters"));
+        renderer.render(screen, graphics, level, 0, 0, 0, WIDTH, HEIGHT);
+        screen.refresh();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        screen.stopScreen();
+    }
+
+    /** Scrolling sideways, which redraws every cell. */
+    @Benchmark
+    public int scrollSideways() throws IOException {
+        int cells = renderer.render(screen, graphics, level, 0, (frame++ & 1)*2, 0, WIDTH, HEIGHT);
+        screen.refresh();
+        return cells;
+    }
+
+    /** Scrolling a row up and down, which moves the screen contents. */
+    @Benchmark
+    public int scrollVertically() throws IOException {
+        int cells = renderer.render(screen, graphics, level, 0, 0, frame++ & 1, WIDTH, HEIGHT);
+        screen.refresh();
+        return cells;
+    }
+
+    /** One tile typed, as in insert mode. */
+    @Benchmark
+    public int editOneTile() throws IOException {
+        int cols = Math.min(WIDTH/2, tiles.getWidth()), rows = Math.min(HEIGHT-1, tiles.getHeight());
+        int x = frame % cols, y = frame / cols % rows;
+        frame++;
+        tiles.set(x, y, (byte) (tiles.get(x, y) + 1));
+        renderer.markDirty(x, y);
+        int cells = renderer.render(screen, graphics, level, 0, 0, 0, WIDTH, HEIGHT);
+        screen.refresh();
+        return cells;
+    }
+
+    /** Panning the 1:64 overview sideways by one block. */
+    @Benchmark
+    public int panZoomedOut() throws IOException {
+        int bits = LevelGrid.CHUNK_BITS;
+        int x = tiles.blockStartX(bits, 0) + ((frame++ & 1) << bits), y = tiles.blockStartY(bits, 0);
+        int cells = renderer.renderZoomed(graphics, level, bits, x, y, WIDTH, HEIGHT);
+        screen.refresh();
+        return cells;
+    }
+}
@@ -0,0 +1,49 @@
+package com.lightning.editor;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Deterministic levels shaped roughly like real ones: rolling ground, runs of
+ * platforms and scattered items, so they compress and render like the real thing.
+ */
+final class SyntheticLevels {
+    /** The sizes every benchmark is run at. */
+    static final String SMALL = "1K", MEDIUM = "100K", LARGE = "10M";
+
+    private SyntheticLevels() {
+    }
+
+    static Level create(String size) {
+        switch(size) {
+        case SMALL:
+            return create(40, 25);
+        case MEDIUM:
+            return create(1000, 100);
+        case LARGE:
+            return create(100000, 100);
+        default:
+            throw new IllegalArgumentException("Unknown level size " + size);
+        }
+    }
+
+    static Level create(int width, int height) {
+        Random random = new Random(width*31L + height);
+        LevelGrid grid = new LevelGrid(width, height);
+        byte[] column = new byte[height];
+        int ground = height*3/4;
+        for(int x = 0; x < width; x++) {
+            if(random.nextInt(8) == 0)
+                ground = Math.max(height/2, Math.min(height-2, ground + random.nextInt(3) - 1));
+            Arrays.fill(column, (byte) 0);
+            column[ground] = 0x02;
+            Arrays.fill(column, ground+1, height, (byte) 0x03);
+            if(x % 23 < 6)
+                column[ground-5] = 0x10;
+            if(random.nextInt(10) == 0)
+                column[ground-1 - random.nextInt(4)] = (byte) (0x20 + random.nextInt(16));
+            grid.setColumn(x, 0, column, 0, height);
+        }
+        return new Level(grid);
+    }
+}
@@ -0,0 +1,78 @@
+package com.lightning.editor;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Emits the editor's samples as JFR events. This lives outside src/ because
+ * jdk.jfr is not part of the Java 8 API; EditorStats loads it by name and does
+ * without it where it is missing.
+ */
+class JfrEventSink implements EditorStats.EventSink {
+    @Name("com.lightning.editor.Frame")
+    @Label("Frame")
+    @Category("LeVIm")
+    static class FrameEvent extends Event {
+        @Label("Key to Refresh")
+        @Timespan(Timespan.NANOSECONDS)
+        long keyToRefresh;
+
+        @Label("Render")
+        @Timespan(Timespan.NANOSECONDS)
+        long render;
+
+        @Label("Refresh")
+        @Timespan(Timespan.NANOSECONDS)
+        long refresh;
+
+        @Label("Cells Drawn")
+        int cells;
+    }
+
+    @Name("com.lightning.editor.FileOperation")
+    @Label("File Operation")
+    @Category("LeVIm")
+    static class FileOperationEvent extends Event {
+        @Label("Operation")
+        String operation;
+
+        @Label("Path")
+        String path;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long time;
+    }
+
+    @Override
+    public void frame(long keyToRefreshNanos, long renderNanos, long refreshNanos, int cells) {
+        FrameEvent event = new FrameEvent();
+        if(!event.shouldCommit())
+            return;
+        event.keyToRefresh = keyToRefreshNanos;
+        event.render = renderNanos;
+        event.refresh = refreshNanos;
+        event.cells = cells;
+        event.commit();
+    }
+
+    @Override
+    public void fileOperation(String operation, String path, long bytes, long nanos) {
+        FileOperationEvent event = new FileOperationEvent();
+        if(!event.shouldCommit())
+            return;
+        event.operation = operation;
+        event.path = path;
+        event.bytes = bytes;
+        event.time = nanos;
+        event.commit();
+    }
+}
@@ -0,0 +1,117 @@
+package com.lightning.editor;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saves level snapshots on a single background thread so the editor never
+ * waits for hashing or disk I/O. Finished saves are collected with
+ * {@link #poll()} from the editor's own thread, which a listener can be
+ * told to wake up.
+ */
+public class BackgroundWriter {
+    public static class Result {
+        public final Path path;
+        public final boolean swap;
+        public final long generation;
+        public final Level snapshot; // Holds the chunk hashes worked out while saving
+        public Exception error;
+        public long bytes, nanos;
+
+        Result(Level snapshot, Path path, boolean swap, long generation) {
+            this.snapshot = snapshot;
+            this.path = path;
+            this.swap = swap;
+            this.generation = generation;
+        }
+    }
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "LeVIm writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ConcurrentLinkedQueue<Result> finished = new ConcurrentLinkedQueue<>();
+    private volatile String progress = "";
+    private volatile Runnable listener = null;
+    private int pending = 0; // Only touched by the editor thread
+
+    /**
+     * Queues {@code snapshot} to be written to {@code path}. {@code generation} is
+     * handed back in the result so the caller can tell whether it is still current.
+     */
+    public void submit(final Level snapshot, final Path path, final boolean swap, long generation) {
+        final Result result = new Result(snapshot, path, swap, generation);
+        final String name = (swap ? "swap " : "") + path.getFileName();
+        pending++;
+        executor.execute(() -> {
+            long start = System.nanoTime();
+            try {
+                LevelWriter.write(snapshot, path, LevelWriter.CURRENT_VERSION, percent -> setProgress("Writing " + name + " " + percent + "%"));
+                result.bytes = Files.size(path);
+            } catch(Exception e) {
+                e.printStackTrace();
+                result.error = e;
+            }
+            result.nanos = System.nanoTime() - start;
+            progress = "";
+            finished.add(result);
+            notifyListener();
+        });
+    }
+
+    /** Sets what to run, on the writer's thread, whenever a save finishes or its progress changes. */
+    public void setListener(Runnable listener) {
+        this.listener = listener;
+    }
+
+    private void setProgress(String progress) {
+        if(!progress.equals(this.progress)) {
+            this.progress = progress;
+            notifyListener();
+        }
+    }
+
+    private void notifyListener() {
+        Runnable listener = this.listener;
+        if(listener != null)
+            listener.run();
+    }
+
+    /** Returns the next finished save, or null if none has finished since the last call. */
+    public Result poll() {
+        Result result = finished.poll();
+        if(result != null)
+            pending--;
+        return result;
+    }
+
+    /** Waits until every save queued so far has finished. Their results still have to be collected with {@link #poll()}. */
+    public void awaitIdle() throws InterruptedException {
+        try {
+            executor.submit(() -> {}).get(); // The single thread runs it after everything before it
+        } catch(ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public boolean isBusy() {
+        return pending > 0;
+    }
+
+    /** Describes the save in progress, or returns an empty string if there is none. */
+    public String getProgress() {
+        return progress;
+    }
+
+    /** Finishes every queued save and stops the thread. */
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+    }
+}
@@ -0,0 +1,209 @@
+package com.lightning.editor;
+
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Headless entry point: {@code --batch validate|export|convert [options] <files...>}.
+ *
+ * Files are processed concurrently on a fixed pool of one worker per core.
+ * A line per file goes to stderr as each one finishes, and a JSON summary of
+ * every file goes to stdout at the end. The exit status is 0 if every file
+ * succeeded, 1 if any failed and 2 for bad arguments.
+ */
+public class BatchRunner {
+    private static final String USAGE =
+        "Usage: levim --batch validate <files...>\n" +
+        "       levim --batch export [--tileset <png>] [--sheets <columns>x<rows>] <files...>\n" +
+        "       levim --batch convert [--version <0|1|2>] <files...>";
+
+    private final PrintStream out;
+    private final PrintStream err;
+
+    private String operation;
+    private Path tilesetPath = Paths.get(Tileset.DEFAULT_PATH);
+    private int sheetsX = 1, sheetsY = 1;
+    private int version = LevelWriter.CURRENT_VERSION;
+    private final List<Path> files = new ArrayList<>();
+    private Tileset tileset;
+
+    public BatchRunner() {
+        this(System.out, System.err);
+    }
+
+    public BatchRunner(PrintStream out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+    }
+
+    private static class Result {
+        final Path file;
+        boolean ok;
+        long nanos;
+        String error;
+
+        Result(Path file) {
+            this.file = file;
+        }
+    }
+
+    public int run(String[] args) {
+        if(!parseArgs(args)) {
+            err.println(USAGE);
+            return 2;
+        }
+        if(operation.equals("export")) {
+            try {
+                tileset = Tileset.load(tilesetPath);
+            } catch(Exception e) {
+                err.println("Can't load tileset " + tilesetPath + ": " + e.getMessage());
+                return 2;
+            }
+        }
+
+        int threads = Math.min(Runtime.getRuntime().availableProcessors(), files.size());
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ExecutorCompletionService<Result> completion = new ExecutorCompletionService<>(pool);
+        List<Future<Result>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        int failed = 0;
+        try {
+            int done = 0;
+            while(done < files.size()) {
+                // Keep a couple of files queued per worker and report each one as soon as it finishes
+                if(futures.size() < files.size() && futures.size() - done < threads * 2) {
+                    Path file = files.get(futures.size());
+                    futures.add(completion.submit(() -> process(file)));
+                    continue;
+                }
+                Result result = completion.take().get();
+                done++;
+                if(!result.ok)
+                    failed++;
+                err.println(String.format(Locale.ROOT, "%-4s %9.2f ms  %s%s", result.ok ? "OK" : "FAIL",
+                        result.nanos / 1e6, result.file, result.ok ? "" : ": " + result.error));
+            }
+        } catch(InterruptedException | ExecutionException e) {
+            err.println("Batch aborted: " + e);
+            return 1;
+        } finally {
+            pool.shutdownNow();
+        }
+        long total = System.nanoTime() - start;
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\"operation\":").append(quote(operation))
+            .append(",\"files\":").append(files.size())
+            .append(",\"ok\":").append(files.size() - failed)
+            .append(",\"failed\":").append(failed)
+            .append(",\"threads\":").append(threads)
+            .append(",\"totalMs\":").append(String.format(Locale.ROOT, "%.3f", total / 1e6))
+            .append(",\"results\":[");
+        for(int i = 0; i < futures.size(); i++) {
+            Result result;
+            try {
+                result = futures.get(i).get();
+            } catch(InterruptedException | ExecutionException e) {
+                throw new IllegalStateException(e); // Every future already completed above
+            }
+            if(i > 0)
+                json.append(',');
+            json.append("{\"file\":").append(quote(result.file.toString()))
+                .append(",\"ok\":").append(result.ok)
+                .append(",\"ms\":").append(String.format(Locale.ROOT, "%.3f", result.nanos / 1e6));
+            if(!result.ok)
+                json.append(",\"error\":").append(quote(result.error));
+            json.append('}');
+        }
+        json.append("]}");
+        out.println(json);
+        return failed == 0 ? 0 : 1;
+    }
+
+    private boolean parseArgs(String[] args) {
+        if(args.length == 0)
+            return false;
+        operation = args[0];
+        if(!operation.equals("validate") && !operation.equals("export") && !operation.equals("convert"))
+            return false;
+        for(int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            try {
+                if(arg.equals("--tileset") && operation.equals("export")) {
+                    tilesetPath = Paths.get(args[++i]);
+                } else if(arg.equals("--sheets") && operation.equals("export")) {
+                    String[] sheets = args[++i].split("x");
+                    sheetsX = Integer.parseInt(sheets[0]);
+                    sheetsY = Integer.parseInt(sheets[1]);
+                    if(sheetsX <= 0 || sheetsY <= 0)
+                        return false;
+                } else if(arg.equals("--version") && operation.equals("convert")) {
+                    version = Integer.parseInt(args[++i]);
+                    if(version < 0 || version > LevelWriter.CURRENT_VERSION)
+                        return false;
+                } else if(arg.startsWith("--")) {
+                    return false;
+                } else {
+                    files.add(Paths.get(arg));
+                }
+            } catch(NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                return false;
+            }
+        }
+        return !files.isEmpty();
+    }
+
+    private Result process(Path file) {
+        Result result = new Result(file);
+        long start = System.nanoTime();
+        try {
+            Level level = LevelReader.read(file);
+            if(!operation.equals("export")) {
+                // Damaged chunks read as empty, so find them before anything is written back
+                for(int layer = 0; layer < level.getLayerCount(); layer++)
+                    level.getLayer(layer).decodeAll();
+                if(level.getChunkError() != null)
+                    throw level.getChunkError();
+            }
+            if(operation.equals("export")) {
+                String name = file.getFileName().toString();
+                int dot = name.lastIndexOf('.');
+                Path image = file.resolveSibling((dot > 0 ? name.substring(0, dot) : name) + ".png");
+                new ImageExporter(tileset.getCache(), ForkJoinPool.commonPool()).export(level, image, sheetsX, sheetsY);
+                if(level.getChunkError() != null)
+                    throw level.getChunkError();
+            } else if(operation.equals("convert")) {
+                LevelWriter.write(level, file, version);
+            }
+            result.ok = true;
+        } catch(Exception e) {
+            result.error = e.getMessage() == null ? e.toString() : e.getMessage();
+        }
+        result.nanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for(int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if(c == '"' || c == '\\')
+                quoted.append('\\').append(c);
+            else if(c < 0x20)
+                quoted.append(String.format("\\u%04x", (int) c));
+            else
+                quoted.append(c);
+        }
+        return quoted.append('"').toString();
+    }
+}
@@ -0,0 +1,132 @@
+package com.lightning.editor;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses single {@link LevelGrid} chunks for the version 1 and 2 level formats.
+ * Each chunk is stored with whichever of the encodings below comes out smallest.
+ */
+public class ChunkCodec {
+    public static final int EMPTY = 0; // All zero, nothing stored
+    public static final int RAW = 1;
+    public static final int RLE = 2; // (run length - 1, value) byte pairs
+    public static final int DEFLATE = 3;
+
+    public static final int CHUNK_BYTES = LevelGrid.CHUNK_SIZE * LevelGrid.CHUNK_SIZE;
+    /** Large enough for any encoded chunk. */
+    public static final int MAX_ENCODED = CHUNK_BYTES * 2;
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+    private final byte[] scratch = new byte[MAX_ENCODED];
+    private int length;
+
+    /**
+     * Encodes {@code chunk} into {@code out} and returns the encoding used;
+     * {@link #length()} then gives the number of bytes written.
+     */
+    public int encode(byte[] chunk, byte[] out) {
+        boolean empty = true;
+        for(byte b : chunk) {
+            if(b != 0) {
+                empty = false;
+                break;
+            }
+        }
+        if(empty) {
+            length = 0;
+            return EMPTY;
+        }
+
+        int rleLength = encodeRle(chunk, out);
+
+        deflater.reset();
+        deflater.setInput(chunk);
+        deflater.finish();
+        int deflateLength = 0;
+        while(!deflater.finished() && deflateLength < rleLength)
+            deflateLength += deflater.deflate(scratch, deflateLength, scratch.length - deflateLength);
+
+        if(deflater.finished() && deflateLength < rleLength && deflateLength < CHUNK_BYTES) {
+            System.arraycopy(scratch, 0, out, 0, deflateLength);
+            length = deflateLength;
+            return DEFLATE;
+        }
+        if(rleLength < CHUNK_BYTES) {
+            length = rleLength;
+            return RLE;
+        }
+        System.arraycopy(chunk, 0, out, 0, CHUNK_BYTES);
+        length = CHUNK_BYTES;
+        return RAW;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    private static int encodeRle(byte[] chunk, byte[] out) {
+        int n = 0;
+        for(int i = 0; i < chunk.length;) {
+            byte value = chunk[i];
+            int run = 1;
+            while(run < 256 && i + run < chunk.length && chunk[i + run] == value)
+                run++;
+            out[n++] = (byte) (run - 1);
+            out[n++] = value;
+            i += run;
+        }
+        return n;
+    }
+
+    /**
+     * Decodes {@code len} bytes of {@code in} into a new chunk. Returns null if the
+     * data is not a valid chunk in the given encoding.
+     */
+    public byte[] decode(int encoding, byte[] in, int off, int len) {
+        byte[] chunk = new byte[CHUNK_BYTES];
+        switch(encoding) {
+        case EMPTY:
+            return len == 0 ? chunk : null;
+        case RAW:
+            if(len != CHUNK_BYTES)
+                return null;
+            System.arraycopy(in, off, chunk, 0, CHUNK_BYTES);
+            return chunk;
+        case RLE:
+            if(len % 2 != 0)
+                return null;
+            int n = 0;
+            for(int i = off; i < off + len; i += 2) {
+                int run = (in[i] & 0xFF) + 1;
+                if(n + run > CHUNK_BYTES)
+                    return null;
+                byte value = in[i + 1];
+                for(int k = 0; k < run; k++)
+                    chunk[n++] = value;
+            }
+            return n == CHUNK_BYTES ? chunk : null;
+        case DEFLATE:
+            inflater.reset();
+            inflater.setInput(in, off, len);
+            try {
+                int got = 0;
+                while(got < CHUNK_BYTES && !inflater.finished()) {
+                    int step = inflater.inflate(chunk, got, CHUNK_BYTES - got);
+                    if(step == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                        return null;
+                    got += step;
+                }
+                if(!inflater.finished() && inflater.inflate(scratch, 0, 1) != 0) // Too much data
+                    return null;
+                return got == CHUNK_BYTES && inflater.finished() && inflater.getRemaining() == 0 ? chunk : null;
+            } catch(DataFormatException e) {
+                return null;
+            }
+        default:
+            return null;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.lightning.editor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Latency histograms and counters for the phases of the editor's main loop and
+ * for file operations, cheap enough to leave on all the time. Every sample is
+ * also handed to {@link EventSink}, which emits JFR events where the runtime
+ * supports them.
+ */
+public class EditorStats {
+    public enum Phase {
+        KEY_TO_REFRESH("key to refresh"),
+        INPUT_WAIT("input wait"),
+        RENDER("render"),
+        REFRESH("refresh"),
+        LOAD("load"),
+        SAVE("save"),
+        SWAP("swap write"),
+        EXPORT("export");
+
+        final String label;
+
+        Phase(String label) {
+            this.label = label;
+        }
+    }
+
+    /** Where samples go besides the histograms; see JfrEventSink. */
+    interface EventSink {
+        void frame(long keyToRefreshNanos, long renderNanos, long refreshNanos, int cells);
+        void fileOperation(String operation, String path, long bytes, long nanos);
+    }
+
+    private final EnumMap<Phase, Histogram> histograms = new EnumMap<>(Phase.class);
+    private final EventSink events;
+    private long frames, cellsDrawn, maxCells;
+    private long keys;
+    private long bytesWritten, bytesRead;
+
+    public EditorStats() {
+        for(Phase phase : Phase.values())
+            histograms.put(phase, new Histogram());
+        events = loadEventSink();
+    }
+
+    private static EventSink loadEventSink() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return (EventSink) Class.forName("com.lightning.editor.JfrEventSink").getDeclaredConstructor().newInstance();
+        } catch(ReflectiveOperationException | LinkageError e) {
+            return null; // No JFR on this runtime, or built without the JFR classes
+        }
+    }
+
+    public synchronized void record(Phase phase, long nanos) {
+        histograms.get(phase).add(nanos);
+    }
+
+    public synchronized void key() {
+        keys++;
+    }
+
+    /**
+     * Records a finished frame. {@code keyToRefreshNanos} is the time from reading
+     * the key that caused it until the refresh returned, or -1 if no key did.
+     */
+    public synchronized void frame(long keyToRefreshNanos, long renderNanos, long refreshNanos, int cells) {
+        frames++;
+        cellsDrawn += cells;
+        maxCells = Math.max(maxCells, cells);
+        if(keyToRefreshNanos >= 0)
+            histograms.get(Phase.KEY_TO_REFRESH).add(keyToRefreshNanos);
+        histograms.get(Phase.RENDER).add(renderNanos);
+        histograms.get(Phase.REFRESH).add(refreshNanos);
+        if(events != null)
+            events.frame(keyToRefreshNanos, renderNanos, refreshNanos, cells);
+    }
+
+    /** Records a load, save, swap write or export of {@code bytes} bytes. */
+    public synchronized void fileOperation(Phase phase, Path path, long bytes, long nanos) {
+        histograms.get(phase).add(nanos);
+        if(phase == Phase.LOAD)
+            bytesRead += bytes;
+        else
+            bytesWritten += bytes;
+        if(events != null)
+            events.fileOperation(phase.label, String.valueOf(path), bytes, nanos);
+    }
+
+    /** One line per figure, for the :stats command. {@code level} may be null. */
+    public synchronized List<String> describe(Level level) {
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format(Locale.ROOT, "%-15s %7s %9s %9s %9s %9s", "", "count", "p50 ms", "p99 ms", "max ms", "mean ms"));
+        for(Phase phase : Phase.values()) {
+            Histogram h = histograms.get(phase);
+            lines.add(String.format(Locale.ROOT, "%-15s %7d %9.3f %9.3f %9.3f %9.3f", phase.label, h.count,
+                    h.percentile(0.5) / 1e6, h.percentile(0.99) / 1e6, h.max / 1e6, h.mean() / 1e6));
+        }
+        lines.add(String.format(Locale.ROOT, "Keys %d, frames %d, cells drawn %d (%.1f per frame, max %d)",
+                keys, frames, cellsDrawn, frames == 0 ? 0.0 : (double) cellsDrawn / frames, maxCells));
+        lines.add("Bytes read " + bytesRead + ", written " + bytesWritten);
+        Runtime runtime = Runtime.getRuntime();
+        lines.add(String.format(Locale.ROOT, "Level %s, heap %.1f of %.1f MB",
+                level == null ? "none" : level.getWidth() + "x" + level.getHeight() + ", " + level.getLayerCount() + " layers, "
+                        + level.getEntities().size() + " entities using " + level.getAllocatedBytes()/1024 + " KB",
+                (runtime.totalMemory() - runtime.freeMemory()) / 1048576.0, runtime.maxMemory() / 1048576.0));
+        return lines;
+    }
+
+    /** Writes every histogram and counter as CSV. */
+    public synchronized void writeCsv(Path path, Level level) throws IOException {
+        try(PrintWriter out = new PrintWriter(Files.newBufferedWriter(path, StandardCharsets.UTF_8))) {
+            out.println("metric,count,p50_ns,p99_ns,max_ns,mean_ns");
+            for(Phase phase : Phase.values()) {
+                Histogram h = histograms.get(phase);
+                out.println(phase.name().toLowerCase(Locale.ROOT) + "," + h.count + "," + h.percentile(0.5) + ","
+                        + h.percentile(0.99) + "," + h.max + "," + (long) h.mean());
+            }
+            out.println("keys," + keys + ",,,,");
+            out.println("frames," + frames + ",,,,");
+            out.println("cells_drawn," + cellsDrawn + ",,," + maxCells + ",");
+            out.println("bytes_read," + bytesRead + ",,,,");
+            out.println("bytes_written," + bytesWritten + ",,,,");
+            out.println("level_bytes," + (level == null ? 0 : level.getAllocatedBytes()) + ",,,,");
+        }
+    }
+
+    /**
+     * Log-linear histogram: exact below 16 ns, then 16 buckets per power of two,
+     * so percentiles are within about 6% in a fixed 8 KB.
+     */
+    static class Histogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB = 1 << SUB_BITS;
+
+        private final long[] counts = new long[(64 - SUB_BITS + 1) * SUB];
+        long count, max, sum;
+
+        void add(long value) {
+            value = Math.max(0, value);
+            counts[bucket(value)]++;
+            count++;
+            sum += value;
+            max = Math.max(max, value);
+        }
+
+        double mean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /** Returns an upper bound of the {@code fraction} quantile, or 0 if empty. */
+        long percentile(double fraction) {
+            if(count == 0)
+                return 0;
+            long rank = (long) Math.ceil(fraction * count);
+            long seen = 0;
+            for(int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if(seen >= Math.max(1, rank))
+                    return Math.min(max, upperBound(i));
+            }
+            return max;
+        }
+
+        private static int bucket(long value) {
+            if(value < SUB)
+                return (int) value;
+            int exp = 63 - Long.numberOfLeadingZeros(value);
+            return (exp - SUB_BITS + 1) * SUB + (int) (value >>> exp - SUB_BITS & SUB - 1);
+        }
+
+        private static long upperBound(int bucket) {
+            if(bucket < SUB)
+                return bucket;
+            int exp = bucket / SUB + SUB_BITS - 1;
+            long base = 1L << exp;
+            long step = base >>> SUB_BITS;
+            return base + (bucket % SUB + 1) * step - 1;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.lightning.editor;
+
+/**
+ * A sprite or trigger placed in a level. Sprites occupy one tile; triggers
+ * cover a rectangle of tiles with (x, y) as its top left corner. Entities are
+ * immutable, so levels and their snapshots can share them.
+ */
+public final class Entity {
+    public enum Kind { SPRITE, TRIGGER }
+
+    private final Kind kind;
+    private final int x, y, width, height;
+    private final int id; // Sprite type or trigger event, 0-0xFFFF
+
+    private Entity(Kind kind, int x, int y, int width, int height, int id) {
+        if(width < 1 || height < 1 || width > 0xFFFF || height > 0xFFFF)
+            throw new IllegalArgumentException("Bad entity size " + width + "x" + height);
+        if(id < 0 || id > 0xFFFF)
+            throw new IllegalArgumentException("Bad entity ID " + id);
+        this.kind = kind;
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+        this.id = id;
+    }
+
+    public static Entity sprite(int x, int y, int type) {
+        return new Entity(Kind.SPRITE, x, y, 1, 1, type);
+    }
+
+    public static Entity trigger(int x, int y, int width, int height, int event) {
+        return new Entity(Kind.TRIGGER, x, y, width, height, event);
+    }
+
+    /** Returns this entity moved by (dx, dy) tiles. */
+    public Entity moved(int dx, int dy) {
+        return new Entity(kind, x + dx, y + dy, width, height, id);
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /** Inclusive right and bottom edges, computed without overflowing. */
+    long getMaxX() {
+        return (long) x + width - 1;
+    }
+
+    long getMaxY() {
+        return (long) y + height - 1;
+    }
+
+    @Override
+    public String toString() {
+        if(kind == Kind.SPRITE)
+            return String.format("sprite %04X at (%d, %d)", id, x, y);
+        return String.format("trigger %04X at (%d, %d) %dx%d", id, x, y, width, height);
+    }
+}
@@ -0,0 +1,134 @@
+package com.lightning.editor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * The sprites and triggers of a level, in file order, plus a uniform grid of
+ * 16x16 tile cells listing the entities that overlap each one, so that finding
+ * the entities in the viewport or under the cursor only looks at nearby cells.
+ * Only cells with entities are stored. The few triggers that span more than
+ * {@link #MAX_CELLS} cells are kept in a separate list that every query scans.
+ */
+public class EntityIndex {
+    private static final int CELL_BITS = 4;
+    private static final int MAX_CELLS = 64;
+
+    private final List<Entity> sprites = new ArrayList<>();
+    private final List<Entity> triggers = new ArrayList<>();
+    private final HashMap<Long, List<Entity>> cells = new HashMap<>();
+    private final List<Entity> large = new ArrayList<>();
+
+    /** Returns an index of the same entities that can be changed independently. */
+    public EntityIndex copy() {
+        return shifted(0, 0);
+    }
+
+    /** Returns an index of these entities moved by (dx, dy) tiles. */
+    public EntityIndex shifted(int dx, int dy) {
+        EntityIndex copy = new EntityIndex();
+        for(Entity e : sprites)
+            copy.add(dx == 0 && dy == 0 ? e : e.moved(dx, dy));
+        for(Entity e : triggers)
+            copy.add(dx == 0 && dy == 0 ? e : e.moved(dx, dy));
+        return copy;
+    }
+
+    public List<Entity> getSprites() {
+        return Collections.unmodifiableList(sprites);
+    }
+
+    public List<Entity> getTriggers() {
+        return Collections.unmodifiableList(triggers);
+    }
+
+    public int size() {
+        return sprites.size() + triggers.size();
+    }
+
+    public void add(Entity e) {
+        (e.getKind() == Entity.Kind.SPRITE ? sprites : triggers).add(e);
+        if(cellCount(e) > MAX_CELLS) {
+            large.add(e);
+            return;
+        }
+        for(int cy = e.getY() >> CELL_BITS; cy <= (int) (e.getMaxY() >> CELL_BITS); cy++)
+            for(int cx = e.getX() >> CELL_BITS; cx <= (int) (e.getMaxX() >> CELL_BITS); cx++)
+                cells.computeIfAbsent(key(cx, cy), k -> new ArrayList<>(4)).add(e);
+    }
+
+    /** Removes {@code e}, found by identity. Returns false if it wasn't in the index. */
+    public boolean remove(Entity e) {
+        if(!(e.getKind() == Entity.Kind.SPRITE ? sprites : triggers).remove(e))
+            return false;
+        if(cellCount(e) > MAX_CELLS) {
+            large.remove(e);
+            return true;
+        }
+        for(int cy = e.getY() >> CELL_BITS; cy <= (int) (e.getMaxY() >> CELL_BITS); cy++) {
+            for(int cx = e.getX() >> CELL_BITS; cx <= (int) (e.getMaxX() >> CELL_BITS); cx++) {
+                Long key = key(cx, cy);
+                List<Entity> cell = cells.get(key);
+                cell.remove(e);
+                if(cell.isEmpty())
+                    cells.remove(key);
+            }
+        }
+        return true;
+    }
+
+    /** Calls {@code visitor} once for every entity overlapping the inclusive rectangle (x0, y0)-(x1, y1). */
+    public void query(int x0, int y0, int x1, int y1, Consumer<Entity> visitor) {
+        for(Entity e : large)
+            if(overlaps(e, x0, y0, x1, y1))
+                visitor.accept(e);
+        int cx0 = x0 >> CELL_BITS, cy0 = y0 >> CELL_BITS, cx1 = x1 >> CELL_BITS, cy1 = y1 >> CELL_BITS;
+        if((long) (cx1 - cx0 + 1) * (cy1 - cy0 + 1) > cells.size()) {
+            // Fewer stored cells than cells in the rectangle
+            scan(sprites, x0, y0, x1, y1, visitor);
+            scan(triggers, x0, y0, x1, y1, visitor);
+            return;
+        }
+        for(int cy = cy0; cy <= cy1; cy++) {
+            for(int cx = cx0; cx <= cx1; cx++) {
+                List<Entity> cell = cells.get(key(cx, cy));
+                if(cell == null)
+                    continue;
+                for(Entity e : cell) {
+                    // Report each entity from the first of its cells that the rectangle covers
+                    if(cx == Math.max(cx0, e.getX() >> CELL_BITS) && cy == Math.max(cy0, e.getY() >> CELL_BITS)
+                            && overlaps(e, x0, y0, x1, y1))
+                        visitor.accept(e);
+                }
+            }
+        }
+    }
+
+    /** Returns the entity at tile (x, y), preferring sprites and then the one added last, or null if there is none. */
+    public Entity at(int x, int y) {
+        Entity[] found = new Entity[2];
+        query(x, y, x, y, e -> found[e.getKind() == Entity.Kind.SPRITE ? 0 : 1] = e);
+        return found[0] != null ? found[0] : found[1];
+    }
+
+    private static void scan(List<Entity> entities, int x0, int y0, int x1, int y1, Consumer<Entity> visitor) {
+        for(Entity e : entities)
+            if(cellCount(e) <= MAX_CELLS && overlaps(e, x0, y0, x1, y1))
+                visitor.accept(e);
+    }
+
+    private static boolean overlaps(Entity e, int x0, int y0, int x1, int y1) {
+        return e.getX() <= x1 && e.getMaxX() >= x0 && e.getY() <= y1 && e.getMaxY() >= y0;
+    }
+
+    private static long cellCount(Entity e) {
+        return ((e.getMaxX() >> CELL_BITS) - (e.getX() >> CELL_BITS) + 1) * ((e.getMaxY() >> CELL_BITS) - (e.getY() >> CELL_BITS) + 1);
+    }
+
+    private static long key(int cx, int cy) {
+        return (long) cy << 32 | cx & 0xFFFFFFFFL;
+    }
+}
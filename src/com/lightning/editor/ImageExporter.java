@@ -0,0 +1,202 @@
+package com.lightning.editor;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Exports levels as PNG images without ever holding the whole bitmap.
+ *
+ * Each row of tiles becomes a strip that is drawn, filtered and deflated on a
+ * fork-join pool as an independent run of deflate blocks. Strips are written to
+ * the file in order as they complete, with only a few in flight at a time, and
+ * their checksums are combined into the zlib trailer at the end.
+ *
+ * Each tile shown is the one from the topmost visible layer that has one there.
+ */
+public class ImageExporter {
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final int ADLER_BASE = 65521;
+
+    private final TileCache tiles;
+    private final ForkJoinPool pool;
+
+    public ImageExporter(TileCache tiles, ForkJoinPool pool) {
+        this.tiles = tiles;
+        this.pool = pool;
+    }
+
+    /** Writes the whole level to one image. Returns the number of bytes written. */
+    public long export(Level level, Path path) throws IOException {
+        return writeImage(level, 0, 0, level.getWidth(), level.getHeight(), path);
+    }
+
+    /**
+     * Splits the level into {@code sheetsX} by {@code sheetsY} images named after
+     * {@code path} with "-column-row" added before the extension. Returns the
+     * number of bytes written.
+     */
+    public long export(Level level, Path path, int sheetsX, int sheetsY) throws IOException {
+        if(sheetsX == 1 && sheetsY == 1)
+            return export(level, path);
+        String name = path.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : ".png";
+        long bytes = 0;
+        for(int sy = 0; sy < sheetsY; sy++) {
+            int y0 = (int) ((long) level.getHeight() * sy / sheetsY);
+            int y1 = (int) ((long) level.getHeight() * (sy+1) / sheetsY);
+            for(int sx = 0; sx < sheetsX; sx++) {
+                int x0 = (int) ((long) level.getWidth() * sx / sheetsX);
+                int x1 = (int) ((long) level.getWidth() * (sx+1) / sheetsX);
+                bytes += writeImage(level, x0, y0, x1 - x0, y1 - y0, path.resolveSibling(base + "-" + sx + "-" + sy + extension));
+            }
+        }
+        return bytes;
+    }
+
+    private long writeImage(Level level, int x0, int y0, int cols, int rows, Path path) throws IOException {
+        int tileSize = tiles.getTileSize();
+        long pixelWidth = (long) cols * tileSize, pixelHeight = (long) rows * tileSize;
+        if(pixelWidth == 0 || pixelHeight == 0)
+            throw new IOException("Can't export an empty level");
+        if(pixelWidth * TileCache.BYTES_PER_PIXEL + 1 > Integer.MAX_VALUE / tileSize || pixelHeight > Integer.MAX_VALUE)
+            throw new IOException("Level is too large to export: " + cols + "x" + rows);
+
+        try(OutputStream file = new BufferedOutputStream(Files.newOutputStream(path), 1 << 16)) {
+            file.write(SIGNATURE);
+
+            byte[] header = new byte[13];
+            putInt(header, 0, (int) pixelWidth);
+            putInt(header, 4, (int) pixelHeight);
+            header[8] = 8; // Bit depth
+            header[9] = 2; // Truecolor
+            writeChunk(file, "IHDR", header, header.length);
+            writeChunk(file, "IDAT", new byte[] {0x78, (byte) 0x9C}, 2); // zlib header
+
+            long adler = 1;
+            ArrayDeque<ForkJoinTask<Strip>> inFlight = new ArrayDeque<>();
+            int window = pool.getParallelism() * 2;
+            for(int ty = 0; ty < rows; ty++) {
+                // Read the tile IDs here so that workers never touch the level
+                final byte[] ids = new byte[cols];
+                for(int i = 0; i < cols; i++)
+                    ids[i] = level.getVisibleTile(x0 + i, y0 + ty);
+                inFlight.add(pool.submit(() -> encodeStrip(ids)));
+                if(inFlight.size() >= window)
+                    adler = writeStrip(file, inFlight.poll().join(), adler);
+            }
+            while(!inFlight.isEmpty())
+                adler = writeStrip(file, inFlight.poll().join(), adler);
+
+            Deflater last = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            try {
+                last.finish();
+                byte[] trailer = new byte[16];
+                int length = last.deflate(trailer); // Final empty block
+                putInt(trailer, length, (int) adler);
+                writeChunk(file, "IDAT", trailer, length + 4);
+            } finally {
+                last.end();
+            }
+            writeChunk(file, "IEND", new byte[0], 0);
+        }
+        return Files.size(path);
+    }
+
+    private static class Strip {
+        byte[] data;
+        int length;
+        long adler;
+        long rawLength;
+    }
+
+    private Strip encodeStrip(byte[] ids) {
+        int tileSize = tiles.getTileSize();
+        int tileRow = tileSize * TileCache.BYTES_PER_PIXEL;
+        int stride = 1 + ids.length * tileRow;
+        byte[] raw = new byte[stride * tileSize];
+        for(int r = 0; r < tileSize; r++) {
+            int start = r * stride;
+            raw[start] = 1; // Sub filter
+            for(int i = 0; i < ids.length; i++)
+                System.arraycopy(tiles.getPixels(ids[i]), r * tileRow, raw, start + 1 + i * tileRow, tileRow);
+            for(int j = start + stride - 1; j > start + TileCache.BYTES_PER_PIXEL; j--)
+                raw[j] -= raw[j - TileCache.BYTES_PER_PIXEL];
+        }
+
+        Strip strip = new Strip();
+        Adler32 adler = new Adler32();
+        adler.update(raw, 0, raw.length);
+        strip.adler = adler.getValue();
+        strip.rawLength = raw.length;
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(raw);
+            byte[] out = new byte[raw.length / 4 + 64];
+            int length = 0;
+            while(true) {
+                length += deflater.deflate(out, length, out.length - length, Deflater.SYNC_FLUSH);
+                if(length < out.length) // Everything has been flushed
+                    break;
+                byte[] bigger = new byte[out.length * 2];
+                System.arraycopy(out, 0, bigger, 0, length);
+                out = bigger;
+            }
+            strip.data = out;
+            strip.length = length;
+        } finally {
+            deflater.end();
+        }
+        return strip;
+    }
+
+    private static long writeStrip(OutputStream file, Strip strip, long adler) throws IOException {
+        writeChunk(file, "IDAT", strip.data, strip.length);
+        return combineAdler(adler, strip.adler, strip.rawLength);
+    }
+
+    /** Adler-32 of two concatenated pieces of data, as zlib's adler32_combine. */
+    static long combineAdler(long adler1, long adler2, long length2) {
+        long rem = length2 % ADLER_BASE;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = rem * sum1 % ADLER_BASE;
+        sum1 += (adler2 & 0xFFFF) + ADLER_BASE - 1;
+        sum2 += (adler1 >> 16 & 0xFFFF) + (adler2 >> 16 & 0xFFFF) + ADLER_BASE - rem;
+        if(sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+        if(sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+        if(sum2 >= ADLER_BASE * 2) sum2 -= ADLER_BASE * 2;
+        if(sum2 >= ADLER_BASE) sum2 -= ADLER_BASE;
+        return sum1 | sum2 << 16;
+    }
+
+    private static void writeChunk(OutputStream file, String type, byte[] data, int length) throws IOException {
+        DataOutputStream out = new DataOutputStream(file);
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private static void putInt(byte[] data, int off, int value) {
+        data[off] = (byte) (value >> 24);
+        data[off+1] = (byte) (value >> 16);
+        data[off+2] = (byte) (value >> 8);
+        data[off+3] = (byte) value;
+    }
+}
@@ -0,0 +1,196 @@
+package com.lightning.editor;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A level as stored in a .lvl file: one or more tile layers plus the settings,
+ * sprites and triggers that follow them in the file.
+ *
+ * Layer 0 is drawn first and every layer above it covers the ones below
+ * wherever its tiles aren't 0. All layers have the same size and grow
+ * together. Since a {@link LevelGrid} only allocates chunks that hold a
+ * non-zero tile, a mostly empty layer costs little more than its chunk
+ * directory.
+ */
+public class Level {
+    public static final int MAX_LAYERS = 255;
+
+    private final List<LevelGrid> layers = new ArrayList<>();
+    private final BitSet hidden = new BitSet(); // Layers left out of the composited view, not saved
+    private float scrollSpeed = 1; // Background scroll speed relative to player
+    private EntityIndex entities = new EntityIndex();
+    private boolean entitiesShared = false; // Also used by a snapshot, copied before changing
+
+    public Level() {
+        this(new LevelGrid());
+    }
+
+    public Level(LevelGrid tiles) {
+        layers.add(tiles);
+    }
+
+    public Level(LevelGrid tiles, float scrollSpeed) {
+        this(tiles);
+        this.scrollSpeed = scrollSpeed;
+    }
+
+    /** Makes a level of the given layers, bottom first, which must all have the same size. */
+    public Level(List<LevelGrid> layers, float scrollSpeed) {
+        if(layers.isEmpty() || layers.size() > MAX_LAYERS)
+            throw new IllegalArgumentException(layers.size() + " layers");
+        for(LevelGrid layer : layers)
+            if(layer.getWidth() != layers.get(0).getWidth() || layer.getHeight() != layers.get(0).getHeight())
+                throw new IllegalArgumentException("Layers differ in size");
+        this.layers.addAll(layers);
+        this.scrollSpeed = scrollSpeed;
+    }
+
+    /** Returns a copy of this level that later edits to either one don't affect. */
+    public Level snapshot() {
+        List<LevelGrid> copies = new ArrayList<>(layers.size());
+        for(LevelGrid layer : layers)
+            copies.add(layer.snapshot());
+        Level copy = new Level(copies, scrollSpeed);
+        copy.hidden.or(hidden);
+        copy.entities = entities;
+        copy.entitiesShared = entitiesShared = true;
+        return copy;
+    }
+
+    /** Returns the bottom layer. */
+    public LevelGrid getTiles() {
+        return layers.get(0);
+    }
+
+    public LevelGrid getLayer(int layer) {
+        return layers.get(layer);
+    }
+
+    public int getLayerCount() {
+        return layers.size();
+    }
+
+    public int getWidth() {
+        return layers.get(0).getWidth();
+    }
+
+    public int getHeight() {
+        return layers.get(0).getHeight();
+    }
+
+    /** Adds an empty layer on top of the others. Returns its number. */
+    public int addLayer() {
+        if(layers.size() == MAX_LAYERS)
+            throw new IllegalStateException("A level can't have more than " + MAX_LAYERS + " layers");
+        layers.add(LevelGrid.emptyLike(layers.get(0)));
+        hidden.clear(layers.size() - 1);
+        return layers.size() - 1;
+    }
+
+    /** Removes a layer; the ones above it move down by one. The last layer can't be removed. */
+    public void removeLayer(int layer) {
+        if(layers.size() == 1)
+            throw new IllegalStateException("Can't remove the only layer");
+        layers.remove(layer);
+        for(int i = layer; i < layers.size(); i++)
+            hidden.set(i, hidden.get(i + 1));
+        hidden.clear(layers.size());
+    }
+
+    public boolean isVisible(int layer) {
+        return !hidden.get(layer);
+    }
+
+    public void setVisible(int layer, boolean visible) {
+        hidden.set(layer, !visible);
+    }
+
+    /** Returns the tile of the topmost visible layer that isn't 0 at (x, y), or 0 if there is none. */
+    public byte getVisibleTile(int x, int y) {
+        for(int i = layers.size() - 1; i >= 0; i--) {
+            if(hidden.get(i))
+                continue;
+            byte tile = layers.get(i).get(x, y);
+            if(tile != 0)
+                return tile;
+        }
+        return 0;
+    }
+
+    /**
+     * Grows every layer so that (x, y) lies inside the level, moving the
+     * entities along if it grew left or up. Returns what
+     * {@link LevelGrid#ensureContains} returned.
+     */
+    public long ensureContains(int x, int y) {
+        long grown = 0;
+        for(LevelGrid layer : layers)
+            grown = layer.ensureContains(x, y);
+        if(grown != 0 && entities.size() > 0) {
+            entities = entities.shifted((int) (grown >>> 32), (int) grown);
+            entitiesShared = false;
+        }
+        return grown;
+    }
+
+    /** The sprites and triggers; change them through {@link #addEntity} and {@link #removeEntity}. */
+    public EntityIndex getEntities() {
+        return entities;
+    }
+
+    public void addEntity(Entity e) {
+        writableEntities().add(e);
+    }
+
+    public boolean removeEntity(Entity e) {
+        return writableEntities().remove(e);
+    }
+
+    private EntityIndex writableEntities() {
+        if(entitiesShared) {
+            entities = entities.copy();
+            entitiesShared = false;
+        }
+        return entities;
+    }
+
+    /**
+     * Keeps the chunk hashes that {@code snapshot}, taken from this level, has
+     * worked out for chunks that haven't changed since, so the next save
+     * doesn't hash them again.
+     */
+    public void adoptChunkHashes(Level snapshot) {
+        if(snapshot.layers.size() != layers.size())
+            return;
+        for(int i = 0; i < layers.size(); i++)
+            layers.get(i).adoptChunkHashes(snapshot.layers.get(i));
+    }
+
+    /** Returns why the first chunk that failed to load from this level's file did, or null if none has. Such chunks read as empty. */
+    public LevelFormatException getChunkError() {
+        for(LevelGrid layer : layers) {
+            LevelGrid.ChunkSource source = layer.getChunkSource();
+            if(source != null && source.getError() != null)
+                return source.getError();
+        }
+        return null;
+    }
+
+    /** Approximate heap used by the tiles of every layer. */
+    public long getAllocatedBytes() {
+        long bytes = 0;
+        for(LevelGrid layer : layers)
+            bytes += layer.getAllocatedBytes();
+        return bytes;
+    }
+
+    public float getScrollSpeed() {
+        return scrollSpeed;
+    }
+
+    public void setScrollSpeed(float scrollSpeed) {
+        this.scrollSpeed = scrollSpeed;
+    }
+}
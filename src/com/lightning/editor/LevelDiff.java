@@ -0,0 +1,157 @@
+package com.lightning.editor;
+
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Headless entry point: {@code --diff <a.lvl> <b.lvl>}, listing what differs
+ * between two levels, one line per change, on stdout.
+ *
+ * Tiles are compared a chunk at a time through {@link LevelGrid#getChunkHash}.
+ * Version 2 files store those hashes in their index, and reading one only
+ * checks its header, entities and index, so two of them are compared without
+ * touching chunk data at all: files with the same digest are the same level,
+ * and otherwise only the chunks whose hashes differ get decoded, to find
+ * which of their tiles changed. Older files are checked and hashed in full. The exit status is 0 if the levels are the
+ * same, 1 if they differ and 2 for bad arguments or unreadable files.
+ */
+public class LevelDiff {
+    private static final String USAGE = "Usage: levim --diff <a.lvl> <b.lvl>";
+
+    private final PrintStream out;
+    private final PrintStream err;
+
+    public LevelDiff() {
+        this(System.out, System.err);
+    }
+
+    public LevelDiff(PrintStream out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+    }
+
+    public int run(String[] args) {
+        if(args.length != 2 || args[0].startsWith("--") || args[1].startsWith("--")) {
+            err.println(USAGE);
+            return 2;
+        }
+        Level[] levels = new Level[2];
+        for(int i = 0; i < 2; i++) {
+            try {
+                levels[i] = LevelReader.read(Paths.get(args[i]));
+            } catch(Exception e) {
+                err.println(args[i] + ": " + (e.getMessage() == null ? e.toString() : e.getMessage()));
+                return 2;
+            }
+        }
+        if(sameDigest(levels[0], levels[1]))
+            return 0;
+        int count = diff(levels[0], levels[1]);
+        for(int i = 0; i < 2; i++) {
+            if(levels[i].getChunkError() != null) { // A chunk that was compared reads as empty
+                err.println(args[i] + ": " + levels[i].getChunkError().getMessage());
+                return 2;
+            }
+        }
+        return count == 0 ? 0 : 1;
+    }
+
+    /** Prints a line for every difference between {@code a} and {@code b}. Returns how many lines there were. */
+    public int diff(Level a, Level b) {
+        int count = 0;
+        if(a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight()) {
+            out.println("size " + a.getWidth() + "x" + a.getHeight() + " -> " + b.getWidth() + "x" + b.getHeight());
+            count++;
+        }
+        if(a.getLayerCount() != b.getLayerCount()) {
+            out.println("layers " + a.getLayerCount() + " -> " + b.getLayerCount());
+            count++;
+        }
+        if(Float.compare(a.getScrollSpeed(), b.getScrollSpeed()) != 0) {
+            out.println("scroll speed " + a.getScrollSpeed() + " -> " + b.getScrollSpeed());
+            count++;
+        }
+
+        int chunksX = (Math.max(a.getWidth(), b.getWidth()) + LevelGrid.CHUNK_MASK) >> LevelGrid.CHUNK_BITS;
+        int chunksY = (Math.max(a.getHeight(), b.getHeight()) + LevelGrid.CHUNK_MASK) >> LevelGrid.CHUNK_BITS;
+        byte[] tilesA = new byte[ChunkCodec.CHUNK_BYTES], tilesB = new byte[ChunkCodec.CHUNK_BYTES];
+        for(int layer = 0; layer < Math.max(a.getLayerCount(), b.getLayerCount()); layer++) {
+            LevelGrid gridA = layer < a.getLayerCount() ? a.getLayer(layer) : null;
+            LevelGrid gridB = layer < b.getLayerCount() ? b.getLayer(layer) : null;
+            for(int cy = 0; cy < chunksY; cy++) {
+                for(int cx = 0; cx < chunksX; cx++) {
+                    if(Arrays.equals(hash(gridA, cx, cy), hash(gridB, cx, cy)))
+                        continue;
+                    copy(gridA, cx, cy, tilesA);
+                    copy(gridB, cx, cy, tilesB);
+                    int minX = LevelGrid.CHUNK_SIZE, minY = LevelGrid.CHUNK_SIZE, maxX = -1, maxY = -1, changed = 0;
+                    for(int i = 0; i < tilesA.length; i++) {
+                        if(tilesA[i] == tilesB[i])
+                            continue;
+                        int x = i >> LevelGrid.CHUNK_BITS, y = i & LevelGrid.CHUNK_MASK;
+                        minX = Math.min(minX, x);
+                        minY = Math.min(minY, y);
+                        maxX = Math.max(maxX, x);
+                        maxY = Math.max(maxY, y);
+                        changed++;
+                    }
+                    int x0 = cx << LevelGrid.CHUNK_BITS, y0 = cy << LevelGrid.CHUNK_BITS;
+                    out.printf("layer %d: %d tiles changed in (%d, %d)-(%d, %d)%n", layer, changed, x0 + minX, y0 + minY, x0 + maxX, y0 + maxY);
+                    count++;
+                }
+            }
+        }
+
+        // Entities have no identity of their own, so match them by what they are
+        Map<String, Integer> unmatched = new HashMap<>(); // How many more of each are in b than in a
+        for(Entity e : entities(b))
+            unmatched.merge(e.toString(), 1, Integer::sum);
+        for(Entity e : entities(a)) {
+            if(unmatched.merge(e.toString(), -1, Integer::sum) < 0) {
+                out.println("- " + e);
+                count++;
+            }
+        }
+        for(Entity e : entities(b)) {
+            if(unmatched.merge(e.toString(), -1, Integer::sum) >= 0) {
+                out.println("+ " + e);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** Whether both levels were read from version 2 files with the same digest, which covers everything in them. */
+    private static boolean sameDigest(Level a, Level b) {
+        LevelGrid.ChunkSource sourceA = a.getTiles().getChunkSource(), sourceB = b.getTiles().getChunkSource();
+        return sourceA instanceof LevelReader.MappedChunks && sourceB instanceof LevelReader.MappedChunks
+            && ((LevelReader.MappedChunks) sourceA).digest != null
+            && Arrays.equals(((LevelReader.MappedChunks) sourceA).digest, ((LevelReader.MappedChunks) sourceB).digest);
+    }
+
+    private static List<Entity> entities(Level level) {
+        List<Entity> entities = new ArrayList<>(level.getEntities().getSprites());
+        entities.addAll(level.getEntities().getTriggers());
+        return entities;
+    }
+
+    private static boolean inside(LevelGrid grid, int cx, int cy) {
+        return grid != null && cx << LevelGrid.CHUNK_BITS < grid.getWidth() && cy << LevelGrid.CHUNK_BITS < grid.getHeight();
+    }
+
+    private static byte[] hash(LevelGrid grid, int cx, int cy) {
+        return inside(grid, cx, cy) ? grid.getChunkHash(cx, cy) : LevelGrid.EMPTY_HASH;
+    }
+
+    private static void copy(LevelGrid grid, int cx, int cy, byte[] dst) {
+        if(inside(grid, cx, cy))
+            grid.copyChunk(cx, cy, dst);
+        else
+            Arrays.fill(dst, (byte) 0);
+    }
+}
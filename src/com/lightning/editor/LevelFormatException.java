@@ -0,0 +1,55 @@
+package com.lightning.editor;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a level file can't be read. {@link #getReason()} tells callers
+ * which check failed and {@link #getOffset()} where in the file it happened.
+ */
+public class LevelFormatException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public enum Reason {
+        BAD_MAGIC("not a level file"),
+        UNSUPPORTED_VERSION("file is too new"),
+        UNSUPPORTED_LAYERS("unsupported number of layers"),
+        BAD_ENTITY("invalid sprite or trigger"),
+        TOO_LARGE("file is too large"),
+        TRUNCATED("file is truncated"),
+        TRAILING_DATA("unexpected data before the checksum"),
+        CORRUPT_INDEX("invalid chunk index"),
+        CORRUPT_CHUNK("damaged chunk"),
+        BAD_CHECKSUM("checksum mismatch");
+
+        private final String description;
+
+        Reason(String description) {
+            this.description = description;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+    }
+
+    private final Reason reason;
+    private final long offset;
+
+    public LevelFormatException(Reason reason, long offset) {
+        this(reason, offset, null);
+    }
+
+    public LevelFormatException(Reason reason, long offset, String detail) {
+        super(reason.getDescription() + " at offset " + offset + (detail == null ? "" : " (" + detail + ")"));
+        this.reason = reason;
+        this.offset = offset;
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+}
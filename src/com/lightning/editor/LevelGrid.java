@@ -0,0 +1,716 @@
+package com.lightning.editor;
+
+import java.util.Arrays;
+
+/**
+ * Rectangular tile grid stored as fixed-size square chunks of raw bytes.
+ *
+ * Chunks are only allocated once a non-zero tile is written to them, and the
+ * chunk directory keeps slack on every side so that growing the level in any
+ * direction never moves tile data. Chunks can also be left encoded in a
+ * {@link ChunkSource} and decoded the first time they are touched.
+ *
+ * {@link #snapshot()} makes a copy that shares every chunk with the original;
+ * whichever side writes to a shared chunk first copies it, so snapshots are
+ * cheap enough to take on every save.
+ *
+ * Once {@link #getIndex()} has been called, every write also updates the
+ * {@link TileIndex} of where each tile ID occurs.
+ *
+ * For zoomed out views, {@link #countBlock} counts the non-empty tiles of
+ * square blocks 2 to 64 tiles wide. Each chunk keeps a small pyramid of those
+ * counts for blocks of 4 tiles and up, built the first time it is asked for
+ * and then updated by every write, one counter per block size.
+ *
+ * {@link #getChunkHash} returns the SHA-256 of a chunk's tiles, which is kept
+ * until the chunk is next written so that saving or comparing a level only
+ * hashes the chunks that changed.
+ */
+public class LevelGrid {
+    /** Supplies chunks that were registered with {@link LevelGrid#setPendingChunk} on first use. */
+    public interface ChunkSource {
+        /** Returns the tiles of chunk {@code ref}, or null if they couldn't be loaded; the chunk then reads as empty. */
+        byte[] loadChunk(int ref);
+
+        /** Returns why the first chunk that couldn't be loaded failed, or null if none has. */
+        default LevelFormatException getError() {
+            return null;
+        }
+    }
+
+    /** Told about every tile a bulk operation changes, just before it changes. */
+    public interface ChangeListener {
+        void changed(int x, int y, byte oldValue, byte newValue);
+    }
+
+    public static final int CHUNK_BITS = 6;
+    public static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    public static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private byte[][] chunks; // chunk directory, indexed by cy*dirCols + cx
+    private int dirCols, dirRows;
+    private int offsetX, offsetY; // storage position of level cell (0, 0)
+    private int width, height;
+    private ChunkSource source;
+    private int[] pending; // 1 + source reference of each chunk not decoded yet, or 0
+    private boolean[] shared; // Chunks that must be copied before they are written to
+    private TileIndex occurrences; // Built on first use, not shared with snapshots
+    private char[][] summaries; // Block counts of each chunk, see summary(); null until first used, not shared with snapshots
+    private byte[][] hashes; // SHA-256 of each chunk, null where not known; null until first used
+
+    /** The hash of a chunk of zeros, as returned by {@link #getChunkHash} for empty chunks. */
+    static final byte[] EMPTY_HASH = hashChunk(new byte[CHUNK_SIZE*CHUNK_SIZE]);
+
+    private static final int SUMMARY_MIN_BITS = 2;
+    private static final int[] SUMMARY_OFFSET = new int[CHUNK_BITS + 2]; // Start of each block size in a summary, by bits
+    static {
+        for(int bits = SUMMARY_MIN_BITS; bits <= CHUNK_BITS; bits++)
+            SUMMARY_OFFSET[bits + 1] = SUMMARY_OFFSET[bits] + (CHUNK_SIZE >> bits)*(CHUNK_SIZE >> bits);
+    }
+
+    public LevelGrid() {
+        this(0, 0);
+    }
+
+    public LevelGrid(int width, int height) {
+        if(width < 0 || height < 0)
+            throw new IllegalArgumentException("Negative level size " + width + "x" + height);
+        this.width = width;
+        this.height = height;
+        dirCols = Math.max(1, chunksFor(width));
+        dirRows = Math.max(1, chunksFor(height));
+        chunks = new byte[dirCols*dirRows][];
+    }
+
+    private static int chunksFor(int cells) {
+        return (cells + CHUNK_MASK) >> CHUNK_BITS;
+    }
+
+    /** Returns an empty grid of the same size, laid out like {@code other} so that their blocks line up. */
+    public static LevelGrid emptyLike(LevelGrid other) {
+        LevelGrid grid = new LevelGrid(other.width, other.height);
+        grid.chunks = new byte[other.chunks.length][];
+        grid.dirCols = other.dirCols;
+        grid.dirRows = other.dirRows;
+        grid.offsetX = other.offsetX;
+        grid.offsetY = other.offsetY;
+        return grid;
+    }
+
+    private LevelGrid(LevelGrid other) {
+        chunks = other.chunks.clone();
+        dirCols = other.dirCols;
+        dirRows = other.dirRows;
+        offsetX = other.offsetX;
+        offsetY = other.offsetY;
+        width = other.width;
+        height = other.height;
+        source = other.source;
+        pending = other.pending == null ? null : other.pending.clone();
+        hashes = other.hashes == null ? null : other.hashes.clone();
+        shared = new boolean[chunks.length];
+        Arrays.fill(shared, true);
+    }
+
+    /** Returns a copy of this grid; neither copy sees later edits to the other. */
+    public LevelGrid snapshot() {
+        if(shared == null || shared.length != chunks.length)
+            shared = new boolean[chunks.length];
+        Arrays.fill(shared, true);
+        return new LevelGrid(this);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    ChunkSource getChunkSource() {
+        return source;
+    }
+
+    public void setChunkSource(ChunkSource source) {
+        this.source = source;
+        if(pending == null)
+            pending = new int[chunks.length];
+    }
+
+    /**
+     * Registers chunk (cx, cy) to be fetched from the chunk source when first
+     * accessed. Only valid while column and row 0 start a chunk, i.e. before
+     * the level has grown left or up.
+     */
+    public void setPendingChunk(int cx, int cy, int ref) {
+        int index = chunkIndex(cx, cy);
+        pending[index] = ref + 1;
+        if(summaries != null)
+            summaries[index] = null;
+        if(hashes != null)
+            hashes[index] = null;
+        occurrences = null;
+    }
+
+    /** Installs chunk (cx, cy) directly, under the same alignment rule as {@link #setPendingChunk}. */
+    public void setChunk(int cx, int cy, byte[] data) {
+        if(data.length != CHUNK_SIZE*CHUNK_SIZE)
+            throw new IllegalArgumentException("Chunk has " + data.length + " bytes");
+        int index = chunkIndex(cx, cy);
+        chunks[index] = data;
+        if(pending != null)
+            pending[index] = 0;
+        if(shared != null)
+            shared[index] = false;
+        if(summaries != null)
+            summaries[index] = null;
+        if(hashes != null)
+            hashes[index] = null;
+        occurrences = null;
+    }
+
+    /**
+     * Records that chunk (cx, cy), however it is stored, hashes to {@code hash},
+     * under the same alignment rule as {@link #setPendingChunk}.
+     */
+    void setChunkHash(int cx, int cy, byte[] hash) {
+        int index = chunkIndex(cx, cy);
+        if(hashes == null)
+            hashes = new byte[chunks.length][];
+        hashes[index] = hash;
+    }
+
+    /**
+     * Returns the SHA-256 of the tiles of chunk (cx, cy) as laid out by
+     * {@link #copyChunk}. The hash is kept until the chunk is written, except
+     * while the level is not chunk aligned (after growing left or up by other
+     * than a multiple of {@link #CHUNK_SIZE}); then every call hashes the
+     * tiles again. Callers must not modify the array.
+     */
+    public byte[] getChunkHash(int cx, int cy) {
+        if(((offsetX | offsetY) & CHUNK_MASK) != 0) {
+            byte[] tiles = new byte[CHUNK_SIZE*CHUNK_SIZE];
+            return copyChunk(cx, cy, tiles) ? hashChunk(tiles) : EMPTY_HASH;
+        }
+        int index = chunkIndex(cx, cy);
+        if(hashes == null)
+            hashes = new byte[chunks.length][];
+        if(hashes[index] == null) {
+            byte[] chunk = chunk(index);
+            hashes[index] = chunk == null ? EMPTY_HASH : hashChunk(chunk);
+        }
+        return hashes[index];
+    }
+
+    static byte[] hashChunk(byte[] tiles) {
+        return LevelReader.newDigest().digest(tiles);
+    }
+
+    /**
+     * Takes over the chunk hashes that {@code copy}, a snapshot of this grid,
+     * has worked out for chunks that still hold what they held when it was
+     * taken. Lets a save done on a snapshot spare the next save the hashing.
+     */
+    void adoptChunkHashes(LevelGrid copy) {
+        if(copy.hashes == null || copy.source != source || copy.dirCols != dirCols || copy.dirRows != dirRows
+                || copy.offsetX != offsetX || copy.offsetY != offsetY)
+            return;
+        if(hashes == null)
+            hashes = new byte[chunks.length][];
+        for(int i = 0; i < chunks.length; i++) {
+            // Written chunks are copied first, so an unchanged chunk is still the same array
+            if(hashes[i] == null && copy.hashes[i] != null && chunks[i] == copy.chunks[i]
+                    && (pending == null ? 0 : pending[i]) == (copy.pending == null ? 0 : copy.pending[i]))
+                hashes[i] = copy.hashes[i];
+        }
+    }
+
+    /**
+     * Copies the tiles of chunk (cx, cy), counted from level position (0, 0), into
+     * {@code dst} in the chunk layout (column-major). Returns false if they are all 0.
+     */
+    public boolean copyChunk(int cx, int cy, byte[] dst) {
+        int x = cx << CHUNK_BITS, y = cy << CHUNK_BITS;
+        for(int i = 0; i < CHUNK_SIZE; i++)
+            getColumn(x + i, y, dst, i << CHUNK_BITS, CHUNK_SIZE);
+        for(byte b : dst)
+            if(b != 0)
+                return true;
+        return false;
+    }
+
+    private int chunkIndex(int cx, int cy) {
+        if((offsetX & CHUNK_MASK) != 0 || (offsetY & CHUNK_MASK) != 0)
+            throw new IllegalStateException("Level is not chunk aligned");
+        if(cx < 0 || cy < 0 || cx >= chunksFor(width) || cy >= chunksFor(height))
+            throw new IndexOutOfBoundsException("Chunk (" + cx + ", " + cy + ") outside " + width + "x" + height + " level");
+        return ((offsetY >> CHUNK_BITS) + cy)*dirCols + (offsetX >> CHUNK_BITS) + cx;
+    }
+
+    private byte[] chunk(int index) {
+        byte[] chunk = chunks[index];
+        if(chunk == null && pending != null && pending[index] != 0) {
+            chunk = chunks[index] = source.loadChunk(pending[index] - 1);
+            pending[index] = 0;
+            if(shared != null) // Decoded for this grid alone
+                shared[index] = false;
+            if(chunk == null && hashes != null) // Damaged, so no longer what the file's hash describes
+                hashes[index] = null;
+        }
+        return chunk;
+    }
+
+    /** Stores a new empty chunk at {@code index}, which only this grid has. */
+    private byte[] newChunk(int index) {
+        byte[] chunk = chunks[index] = new byte[CHUNK_SIZE*CHUNK_SIZE];
+        if(shared != null)
+            shared[index] = false;
+        return chunk;
+    }
+
+    /**
+     * Returns the index of where each tile ID occurs, building it with one pass
+     * over the level the first time.
+     */
+    public TileIndex getIndex() {
+        if(occurrences == null)
+            occurrences = TileIndex.build(this);
+        return occurrences;
+    }
+
+    /**
+     * Changes every tile with ID {@code from} to {@code to}, finding them through
+     * the index so no other tile is touched. Returns the number of tiles changed.
+     */
+    public long replace(byte from, byte to, ChangeListener listener) {
+        if(from == 0)
+            throw new IllegalArgumentException("Empty tiles are not indexed");
+        if(from == to)
+            return 0;
+        long[] positions = getIndex().positions(from);
+        for(long position : positions) {
+            int x = (int) (position >> 32), y = (int) position;
+            if(listener != null)
+                listener.changed(x, y, from, to);
+            set(x, y, to);
+        }
+        return positions.length;
+    }
+
+    /**
+     * Returns the number of non-empty tiles in the block of 2^{@code bits} by
+     * 2^{@code bits} tiles that holds (x, y), for {@code bits} up to
+     * {@link #CHUNK_BITS}. Blocks line up with the chunks rather than with
+     * (0, 0); see {@link #blockStartX} and {@link #blockStartY}.
+     */
+    public int countBlock(int bits, int x, int y) {
+        long sx = (long) x + offsetX, sy = (long) y + offsetY;
+        if(sx < 0 || sy < 0 || sx >= (long) dirCols << CHUNK_BITS || sy >= (long) dirRows << CHUNK_BITS)
+            return 0;
+        int index = (int) (sy >> CHUNK_BITS)*dirCols + (int) (sx >> CHUNK_BITS);
+        int lx = (int) sx & CHUNK_MASK, ly = (int) sy & CHUNK_MASK;
+        if(bits < SUMMARY_MIN_BITS) {
+            byte[] chunk = chunk(index);
+            if(chunk == null)
+                return 0;
+            int count = 0;
+            lx = lx >> bits << bits;
+            ly = ly >> bits << bits;
+            for(int i = lx; i < lx + (1 << bits); i++)
+                for(int j = ly; j < ly + (1 << bits); j++)
+                    if(chunk[i << CHUNK_BITS | j] != 0)
+                        count++;
+            return count;
+        }
+        char[] summary = summary(index);
+        if(summary == null)
+            return 0;
+        return summary[SUMMARY_OFFSET[bits] + (lx >> bits)*(CHUNK_SIZE >> bits) + (ly >> bits)];
+    }
+
+    /** Returns the first column of the 2^{@code bits} wide block that holds column {@code x}. */
+    public int blockStartX(int bits, int x) {
+        return (int) ((((long) x + offsetX) >> bits << bits) - offsetX);
+    }
+
+    /** Returns the first row of the 2^{@code bits} tall block that holds row {@code y}. */
+    public int blockStartY(int bits, int y) {
+        return (int) ((((long) y + offsetY) >> bits << bits) - offsetY);
+    }
+
+    /** Returns the block counts of a chunk, counting them now if they haven't been yet, or null if the chunk is empty. */
+    private char[] summary(int index) {
+        if(summaries == null)
+            summaries = new char[chunks.length][];
+        char[] summary = summaries[index];
+        if(summary == null) {
+            byte[] chunk = chunk(index);
+            if(chunk == null)
+                return null;
+            summary = summaries[index] = new char[SUMMARY_OFFSET[CHUNK_BITS + 1]];
+            int side = CHUNK_SIZE >> SUMMARY_MIN_BITS;
+            for(int i = 0; i < chunk.length; i++)
+                if(chunk[i] != 0)
+                    summary[(i >> CHUNK_BITS + SUMMARY_MIN_BITS)*side + ((i & CHUNK_MASK) >> SUMMARY_MIN_BITS)]++;
+            // Each larger block adds up the four below it
+            for(int bits = SUMMARY_MIN_BITS + 1; bits <= CHUNK_BITS; bits++) {
+                int below = SUMMARY_OFFSET[bits - 1];
+                side = CHUNK_SIZE >> bits;
+                for(int bx = 0; bx < side; bx++)
+                    for(int by = 0; by < side; by++)
+                        summary[SUMMARY_OFFSET[bits] + bx*side + by] = (char) (summary[below + 2*bx*2*side + 2*by]
+                                + summary[below + 2*bx*2*side + 2*by + 1] + summary[below + (2*bx + 1)*2*side + 2*by]
+                                + summary[below + (2*bx + 1)*2*side + 2*by + 1]);
+            }
+        }
+        return summary;
+    }
+
+    private static void adjustSummary(char[] summary, int lx, int ly, int delta) {
+        for(int bits = SUMMARY_MIN_BITS; bits <= CHUNK_BITS; bits++)
+            summary[SUMMARY_OFFSET[bits] + (lx >> bits)*(CHUNK_SIZE >> bits) + (ly >> bits)] += delta;
+    }
+
+    /** Keeps the block counts of a chunk current when one of its tiles changes from {@code oldValue} to {@code newValue}. */
+    private static void updateSummary(char[] summary, int lx, int ly, byte oldValue, byte newValue) {
+        if(summary != null && (oldValue == 0) != (newValue == 0))
+            adjustSummary(summary, lx, ly, newValue == 0 ? -1 : 1);
+    }
+
+    private char[] builtSummary(int index) {
+        return summaries == null ? null : summaries[index];
+    }
+
+    /** Decodes every chunk still waiting in the chunk source. */
+    public void decodeAll() {
+        if(pending == null)
+            return;
+        for(int i = 0; i < chunks.length; i++)
+            chunk(i);
+    }
+
+    private byte[] writableChunk(int index) {
+        byte[] chunk = chunk(index);
+        if(hashes != null)
+            hashes[index] = null;
+        if(chunk != null && shared != null && shared[index]) {
+            chunk = chunks[index] = chunk.clone();
+            shared[index] = false;
+        }
+        return chunk;
+    }
+
+    /** Approximate heap used by the tiles: every decoded chunk plus the chunk directory. */
+    public long getAllocatedBytes() {
+        long bytes = (long) chunks.length * 8;
+        for(byte[] chunk : chunks)
+            if(chunk != null)
+                bytes += CHUNK_SIZE*CHUNK_SIZE + 16;
+        return bytes;
+    }
+
+    public boolean contains(int x, int y) {
+        return x >= 0 && y >= 0 && x < width && y < height;
+    }
+
+    /** Returns the tile at (x, y), or 0 if the position lies outside the level. */
+    public byte get(int x, int y) {
+        if(!contains(x, y))
+            return 0;
+        int sx = x + offsetX, sy = y + offsetY;
+        byte[] chunk = chunk((sy >> CHUNK_BITS)*dirCols + (sx >> CHUNK_BITS));
+        if(chunk == null)
+            return 0;
+        return chunk[((sx & CHUNK_MASK) << CHUNK_BITS) | (sy & CHUNK_MASK)];
+    }
+
+    public void set(int x, int y, byte value) {
+        if(!contains(x, y))
+            throw new IndexOutOfBoundsException("(" + x + ", " + y + ") outside " + width + "x" + height + " level");
+        int sx = x + offsetX, sy = y + offsetY;
+        int index = (sy >> CHUNK_BITS)*dirCols + (sx >> CHUNK_BITS);
+        byte[] chunk = writableChunk(index);
+        if(chunk == null) {
+            if(value == 0)
+                return;
+            chunk = newChunk(index);
+        }
+        int offset = ((sx & CHUNK_MASK) << CHUNK_BITS) | (sy & CHUNK_MASK);
+        if(occurrences != null)
+            occurrences.changed(x, y, chunk[offset], value);
+        updateSummary(builtSummary(index), sx & CHUNK_MASK, sy & CHUNK_MASK, chunk[offset], value);
+        chunk[offset] = value;
+    }
+
+    /**
+     * Copies up to {@code len} tiles of column {@code x}, starting at row {@code y},
+     * into {@code dst}. Cells outside the level read as 0.
+     */
+    public void getColumn(int x, int y, byte[] dst, int off, int len) {
+        if(x < 0 || x >= width) {
+            Arrays.fill(dst, off, off+len, (byte) 0);
+            return;
+        }
+        int sx = x + offsetX;
+        int cx = sx >> CHUNK_BITS;
+        int base = (sx & CHUNK_MASK) << CHUNK_BITS;
+        int end = off + len;
+        while(off < end) {
+            if(y < 0 || y >= height) {
+                dst[off++] = 0;
+                y++;
+                continue;
+            }
+            int sy = y + offsetY;
+            int run = Math.min(Math.min(CHUNK_SIZE - (sy & CHUNK_MASK), height - y), end - off);
+            byte[] chunk = chunk((sy >> CHUNK_BITS)*dirCols + cx);
+            if(chunk == null)
+                Arrays.fill(dst, off, off+run, (byte) 0);
+            else
+                System.arraycopy(chunk, base | (sy & CHUNK_MASK), dst, off, run);
+            off += run;
+            y += run;
+        }
+    }
+
+    /** Writes {@code len} tiles from {@code src} into column {@code x}, starting at row {@code y}. */
+    public void setColumn(int x, int y, byte[] src, int off, int len) {
+        setColumn(x, y, src, off, len, null);
+    }
+
+    /** Like {@link #setColumn(int, int, byte[], int, int)}, reporting changed tiles to {@code listener} if it isn't null. */
+    public void setColumn(int x, int y, byte[] src, int off, int len, ChangeListener listener) {
+        if(x < 0 || y < 0 || x >= width || y + len > height)
+            throw new IndexOutOfBoundsException("Column " + x + " rows " + y + ".." + (y+len) + " outside " + width + "x" + height + " level");
+        int sx = x + offsetX;
+        int cx = sx >> CHUNK_BITS;
+        int base = (sx & CHUNK_MASK) << CHUNK_BITS;
+        int end = off + len;
+        while(off < end) {
+            int sy = y + offsetY;
+            int run = Math.min(CHUNK_SIZE - (sy & CHUNK_MASK), end - off);
+            int index = (sy >> CHUNK_BITS)*dirCols + cx;
+            byte[] chunk = writableChunk(index);
+            if(chunk == null && !isZero(src, off, run))
+                chunk = newChunk(index);
+            if(chunk != null) {
+                int start = base | (sy & CHUNK_MASK);
+                char[] summary = builtSummary(index);
+                if(listener != null || occurrences != null || summary != null) {
+                    for(int i = 0; i < run; i++) {
+                        if(chunk[start+i] == src[off+i])
+                            continue;
+                        if(listener != null)
+                            listener.changed(x, y+i, chunk[start+i], src[off+i]);
+                        if(occurrences != null)
+                            occurrences.changed(x, y+i, chunk[start+i], src[off+i]);
+                        updateSummary(summary, sx & CHUNK_MASK, (sy & CHUNK_MASK) + i, chunk[start+i], src[off+i]);
+                    }
+                }
+                System.arraycopy(src, off, chunk, start, run);
+            }
+            off += run;
+            y += run;
+        }
+    }
+
+    /**
+     * Sets every tile in the inclusive rectangle (x0, y0)-(x1, y1), which must lie
+     * inside the level, reporting changed tiles to {@code listener} if it isn't null.
+     */
+    public void fill(int x0, int y0, int x1, int y1, byte value, ChangeListener listener) {
+        if(x0 > x1 || y0 > y1 || !contains(x0, y0) || !contains(x1, y1))
+            throw new IndexOutOfBoundsException("(" + x0 + ", " + y0 + ")-(" + x1 + ", " + y1 + ") outside " + width + "x" + height + " level");
+        for(int x = x0; x <= x1; x++) {
+            int sx = x + offsetX;
+            int cx = sx >> CHUNK_BITS;
+            int base = (sx & CHUNK_MASK) << CHUNK_BITS;
+            for(int y = y0; y <= y1; ) {
+                int sy = y + offsetY;
+                int run = Math.min(CHUNK_SIZE - (sy & CHUNK_MASK), y1 - y + 1);
+                int index = (sy >> CHUNK_BITS)*dirCols + cx;
+                byte[] chunk = writableChunk(index);
+                if(chunk == null && value != 0)
+                    chunk = newChunk(index);
+                if(chunk != null) {
+                    int start = base | (sy & CHUNK_MASK);
+                    char[] summary = builtSummary(index);
+                    if(listener != null || occurrences != null || summary != null) {
+                        for(int i = 0; i < run; i++) {
+                            if(chunk[start+i] == value)
+                                continue;
+                            if(listener != null)
+                                listener.changed(x, y+i, chunk[start+i], value);
+                            if(occurrences != null)
+                                occurrences.changed(x, y+i, chunk[start+i], value);
+                            updateSummary(summary, sx & CHUNK_MASK, (sy & CHUNK_MASK) + i, chunk[start+i], value);
+                        }
+                    }
+                    Arrays.fill(chunk, start, start+run, value);
+                }
+                y += run;
+            }
+        }
+    }
+
+    /**
+     * Replaces the tile at (x, y) and every tile connected to it through
+     * horizontal or vertical neighbours with the same value. Works a vertical
+     * run at a time, since runs within a chunk are contiguous. Returns the
+     * number of tiles changed.
+     */
+    public long floodFill(int x, int y, byte value, ChangeListener listener) {
+        if(!contains(x, y))
+            throw new IndexOutOfBoundsException("(" + x + ", " + y + ") outside " + width + "x" + height + " level");
+        byte target = get(x, y);
+        if(target == value)
+            return 0;
+        long changed = 0;
+        long[] seeds = new long[64];
+        int count = 0;
+        seeds[count++] = (long) x << 32 | y;
+        byte[] column = new byte[Math.min(height, 1 << 16)];
+        while(count > 0) {
+            long seed = seeds[--count];
+            x = (int) (seed >> 32);
+            y = (int) seed;
+            if(get(x, y) != target) // Already filled through another seed
+                continue;
+            int y0 = y, y1 = y;
+            while(y0 > 0 && get(x, y0-1) == target)
+                y0--;
+            while(y1 < height-1 && get(x, y1+1) == target)
+                y1++;
+            fill(x, y0, x, y1, value, listener);
+            changed += y1 - y0 + 1;
+
+            // Seed each run of matching tiles beside the one just filled
+            for(int nx = x-1; nx <= x+1; nx += 2) {
+                if(nx < 0 || nx >= width)
+                    continue;
+                boolean inRun = false;
+                for(int start = y0; start <= y1; start += column.length) {
+                    int len = Math.min(column.length, y1 - start + 1);
+                    getColumn(nx, start, column, 0, len);
+                    for(int i = 0; i < len; i++) {
+                        boolean match = column[i] == target;
+                        if(match && !inRun) {
+                            if(count == seeds.length)
+                                seeds = Arrays.copyOf(seeds, count*2);
+                            seeds[count++] = (long) nx << 32 | (start + i);
+                        }
+                        inRun = match;
+                    }
+                }
+            }
+        }
+        return changed;
+    }
+
+    private static boolean isZero(byte[] data, int off, int len) {
+        for(int i = off; i < off+len; i++)
+            if(data[i] != 0)
+                return false;
+        return true;
+    }
+
+    /** Adds {@code n} empty columns before column 0; existing tiles move right by {@code n}. */
+    public void growLeft(int n) {
+        if(n <= 0)
+            return;
+        if(offsetX < n) {
+            int extra = Math.max(chunksFor(n - offsetX), dirCols);
+            relocate(dirCols + extra, dirRows, extra, 0);
+        }
+        offsetX -= n;
+        width += n;
+        if(occurrences != null && !occurrences.shift(n, 0))
+            occurrences = null; // Built again in the new frame on next use
+    }
+
+    /** Adds {@code n} empty rows above row 0; existing tiles move down by {@code n}. */
+    public void growUp(int n) {
+        if(n <= 0)
+            return;
+        if(offsetY < n) {
+            int extra = Math.max(chunksFor(n - offsetY), dirRows);
+            relocate(dirCols, dirRows + extra, 0, extra);
+        }
+        offsetY -= n;
+        height += n;
+        if(occurrences != null && !occurrences.shift(0, n))
+            occurrences = null; // Built again in the new frame on next use
+    }
+
+    /** Adds {@code n} empty columns after the last column. */
+    public void growRight(int n) {
+        if(n <= 0)
+            return;
+        int needed = chunksFor(offsetX + width + n);
+        if(needed > dirCols)
+            relocate(Math.max(needed, dirCols*2), dirRows, 0, 0);
+        width += n;
+    }
+
+    /** Adds {@code n} empty rows after the last row. */
+    public void growDown(int n) {
+        if(n <= 0)
+            return;
+        int needed = chunksFor(offsetY + height + n);
+        if(needed > dirRows)
+            relocate(dirCols, Math.max(needed, dirRows*2), 0, 0);
+        height += n;
+    }
+
+    /**
+     * Grows the level so that (x, y) lies inside it. Returns the number of columns
+     * and rows prepended, packed as {@code (cols << 32) | rows}, so callers can
+     * shift any positions they hold.
+     */
+    public long ensureContains(int x, int y) {
+        int left = 0, up = 0;
+        if(x < 0) {
+            left = -x;
+            growLeft(left);
+        } else if(x >= width) {
+            growRight(x - width + 1);
+        }
+        if(y < 0) {
+            up = -y;
+            growUp(up);
+        } else if(y >= height) {
+            growDown(y - height + 1);
+        }
+        return ((long) left << 32) | up;
+    }
+
+    /** Moves every chunk into a new directory, shifted by (shiftX, shiftY) chunks. */
+    private void relocate(int newCols, int newRows, int shiftX, int shiftY) {
+        byte[][] newChunks = new byte[newCols*newRows][];
+        int[] newPending = pending == null ? null : new int[newChunks.length];
+        boolean[] newShared = shared == null ? null : new boolean[newChunks.length];
+        char[][] newSummaries = summaries == null ? null : new char[newChunks.length][];
+        byte[][] newHashes = hashes == null ? null : new byte[newChunks.length][];
+        for(int cy = 0; cy < dirRows; cy++) {
+            System.arraycopy(chunks, cy*dirCols, newChunks, (cy+shiftY)*newCols + shiftX, dirCols);
+            if(summaries != null)
+                System.arraycopy(summaries, cy*dirCols, newSummaries, (cy+shiftY)*newCols + shiftX, dirCols);
+            if(hashes != null)
+                System.arraycopy(hashes, cy*dirCols, newHashes, (cy+shiftY)*newCols + shiftX, dirCols);
+            if(pending != null)
+                System.arraycopy(pending, cy*dirCols, newPending, (cy+shiftY)*newCols + shiftX, dirCols);
+            if(shared != null)
+                System.arraycopy(shared, cy*dirCols, newShared, (cy+shiftY)*newCols + shiftX, dirCols);
+        }
+        chunks = newChunks;
+        pending = newPending;
+        shared = newShared;
+        summaries = newSummaries;
+        hashes = newHashes;
+        dirCols = newCols;
+        dirRows = newRows;
+        offsetX += shiftX << CHUNK_BITS;
+        offsetY += shiftY << CHUNK_BITS;
+    }
+}
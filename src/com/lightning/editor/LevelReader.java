@@ -0,0 +1,393 @@
+package com.lightning.editor;
+
+import com.lightning.editor.LevelFormatException.Reason;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Parses .lvl files in a single pass over a memory-mapped view of the file,
+ * checking every length against the bytes actually present and feeding the
+ * SHA-256 of everything read so far as it goes. On Windows the file is read
+ * into memory instead, so it can still be saved over while the level is open.
+ *
+ * Version 0 stores each column as a length-prefixed run of tiles, layer after
+ * layer. Version 1 stores the level as {@link LevelGrid} chunks, each
+ * compressed on its own and located through an index at the end of the file
+ * that lists every chunk of the bottom layer, then every chunk of the next one
+ * and so on, so only the chunks that are actually looked at get decoded.
+ *
+ * Version 2 is version 1 with the SHA-256 of each chunk's tiles added to its
+ * index entry. The trailing digest then covers the header, the entities and
+ * the index, and through the hashes in the index every chunk, but not the
+ * chunk data itself, which is checked against its hash as it is decoded.
+ * Reading or writing a file never has to hash chunks that aren't looked at
+ * or didn't change, and two files can be compared from their indexes alone.
+ * A chunk that fails its check reads as empty and is reported through
+ * {@link LevelGrid.ChunkSource#getError}.
+ *
+ * In both versions the sprite and trigger counts are followed by the records
+ * themselves: {@link #SPRITE_LENGTH} bytes per sprite (x, y, type) and then
+ * {@link #TRIGGER_LENGTH} bytes per trigger (x, y, width, height, event).
+ */
+public class LevelReader {
+    static final byte[] MAGIC = {0x11, 0x54, 0x23, (byte) 0xF4};
+    static final int DIGEST_LENGTH = 32;
+    static final int INDEX_ENTRY_LENGTH = 9; // Offset, length, encoding
+    static final int HASHED_ENTRY_LENGTH = INDEX_ENTRY_LENGTH + DIGEST_LENGTH; // Plus the chunk's hash, from version 2
+    static final int SPRITE_LENGTH = 10;
+    static final int TRIGGER_LENGTH = 14;
+    private static final int HASH_BATCH = 1 << 16;
+    // Windows won't replace a file that is still mapped, and a mapping is only released once it is garbage collected
+    private static final boolean MAP_FILES = !System.getProperty("os.name", "").startsWith("Windows");
+
+    private final ByteBuffer in;
+    private final int end; // Where the trailing digest starts
+    private final MessageDigest sha;
+    private int hashed = 0;
+
+    private LevelReader(ByteBuffer in) {
+        this.in = in;
+        this.end = in.limit() - DIGEST_LENGTH;
+        this.sha = newDigest();
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    public static Level read(Path path) throws IOException {
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if(size > Integer.MAX_VALUE)
+                throw new LevelFormatException(Reason.TOO_LARGE, 0, size + " bytes");
+            return read(contents(channel, size));
+        }
+    }
+
+    /** Maps the whole file, or reads it into memory where a mapped file couldn't be saved over. */
+    private static ByteBuffer contents(FileChannel channel, long size) throws IOException {
+        if(MAP_FILES)
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        ByteBuffer data = ByteBuffer.allocate((int) size);
+        while(data.hasRemaining())
+            if(channel.read(data, data.position()) < 0)
+                throw new LevelFormatException(Reason.TRUNCATED, data.position(), "file shrank while reading");
+        data.flip();
+        return data;
+    }
+
+    /**
+     * Reads the chunks of the version 2 level at {@code path} for a writer to
+     * copy instead of encoding them again. Returns null if there is no such
+     * file or it isn't a valid version 2 level.
+     */
+    static MappedChunks readChunks(Path path) {
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if(size > Integer.MAX_VALUE || size < MAGIC.length + 2)
+                return null;
+            ByteBuffer data = contents(channel, size);
+            if((data.getShort(MAGIC.length) & 0xFFFF) != 2) // Older versions have no chunk hashes
+                return null;
+            LevelGrid.ChunkSource source = read(data).getTiles().getChunkSource();
+            return source instanceof MappedChunks ? (MappedChunks) source : null;
+        } catch(IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /** Reads a whole level file from {@code data}, from its position up to its limit. */
+    public static Level read(ByteBuffer data) throws LevelFormatException {
+        return new LevelReader(data.slice()).read();
+    }
+
+    private Level read() throws LevelFormatException {
+        require(MAGIC.length);
+        for(byte b : MAGIC)
+            if(in.get() != b)
+                throw new LevelFormatException(Reason.BAD_MAGIC, 0);
+
+        require(2);
+        int version = in.getShort() & 0xFFFF;
+        if(version > 2)
+            throw new LevelFormatException(Reason.UNSUPPORTED_VERSION, 4, "version " + version);
+
+        require(1);
+        int numLayers = in.get() & 0xFF;
+        if(numLayers == 0)
+            throw new LevelFormatException(Reason.UNSUPPORTED_LAYERS, 6, "no layers");
+
+        return version == 0 ? readVersion0(numLayers) : readChunked(numLayers, version);
+    }
+
+    private Level readVersion0(int numLayers) throws LevelFormatException {
+        List<LevelGrid> layers = new ArrayList<>(numLayers);
+        int width = 0, height = 0;
+        byte[] column = new byte[0xFF];
+        for(int layer = 0; layer < numLayers; layer++) {
+            require(2);
+            int numCols = in.getShort() & 0xFFFF;
+            LevelGrid tiles = new LevelGrid(numCols, 0);
+            for(int j = 0; j < numCols; j++) {
+                require(1);
+                int numCells = in.get() & 0xFF;
+                require(numCells);
+                in.get(column, 0, numCells);
+                tiles.growDown(numCells - tiles.getHeight());
+                tiles.setColumn(j, 0, column, 0, numCells);
+                if(in.position() - hashed >= HASH_BATCH)
+                    hash();
+            }
+            layers.add(tiles);
+            width = Math.max(width, tiles.getWidth());
+            height = Math.max(height, tiles.getHeight());
+        }
+        for(LevelGrid tiles : layers) { // Layers may have been saved with different sizes
+            tiles.growRight(width - tiles.getWidth());
+            tiles.growDown(height - tiles.getHeight());
+        }
+
+        Level level = new Level(layers, 1);
+        if(end - in.position() == 5) {
+            // Written by LeVIm 1.0, which only stored the low byte of the scroll speed
+            in.get();
+        } else {
+            require(4);
+            level.setScrollSpeed(in.getFloat());
+        }
+
+        require(4);
+        int numSprites = in.getShort() & 0xFFFF;
+        int numTriggers = in.getShort() & 0xFFFF;
+        for(Entity e : readEntities(numSprites, numTriggers))
+            level.addEntity(e);
+
+        if(in.position() != end)
+            throw new LevelFormatException(Reason.TRAILING_DATA, in.position(), (end - in.position()) + " bytes");
+
+        verifyDigest();
+        return level;
+    }
+
+    private Level readChunked(int numLayers, int version) throws LevelFormatException {
+        // Chunks are decoded lazily, so check the whole file up front
+        if(version == 1)
+            verifyDigest();
+
+        require(9);
+        int width = in.getInt();
+        int height = in.getInt();
+        if(width < 0 || height < 0)
+            throw new LevelFormatException(Reason.TOO_LARGE, 7, (width & 0xFFFFFFFFL) + "x" + (height & 0xFFFFFFFFL));
+        int chunkBits = in.get() & 0xFF;
+        if(chunkBits != LevelGrid.CHUNK_BITS)
+            throw new LevelFormatException(Reason.UNSUPPORTED_VERSION, 15, "chunk size " + (1L << chunkBits));
+
+        require(8);
+        float scrollSpeed = in.getFloat();
+        int numSprites = in.getShort() & 0xFFFF;
+        int numTriggers = in.getShort() & 0xFFFF;
+        List<Entity> entities = readEntities(numSprites, numTriggers);
+
+        int dataStart = in.position();
+        require(4);
+        int indexOffset = in.getInt(end - 4);
+        long chunksX = (width + (long) LevelGrid.CHUNK_MASK) >> LevelGrid.CHUNK_BITS;
+        long chunksY = (height + (long) LevelGrid.CHUNK_MASK) >> LevelGrid.CHUNK_BITS;
+        long numChunks = chunksX * chunksY;
+        long numEntries = numChunks * numLayers;
+        int entryLength = version == 1 ? INDEX_ENTRY_LENGTH : HASHED_ENTRY_LENGTH;
+        if(indexOffset < dataStart || indexOffset > end - 4 || end - 4 - indexOffset != numEntries * entryLength)
+            throw new LevelFormatException(Reason.CORRUPT_INDEX, end - 4, numLayers + "x" + numChunks + " chunks, index at " + indexOffset);
+        if(version > 1) {
+            // The chunk data is covered by the hashes in the index instead
+            in.position(dataStart);
+            hash();
+            hashed = indexOffset;
+            verifyDigest();
+        }
+
+        MappedChunks source = new MappedChunks(in, (int) numEntries, width, height, version > 1);
+        if(version > 1) {
+            source.digest = new byte[DIGEST_LENGTH];
+            for(int j = 0; j < DIGEST_LENGTH; j++)
+                source.digest[j] = in.get(end + j);
+        }
+        List<LevelGrid> layers = new ArrayList<>(numLayers);
+        in.position(indexOffset);
+        for(int layer = 0; layer < numLayers; layer++) {
+            LevelGrid tiles = new LevelGrid(width, height);
+            tiles.setChunkSource(source);
+            for(int c = 0; c < numChunks; c++) {
+                int i = (int) (layer * numChunks) + c;
+                int entry = in.position();
+                int offset = in.getInt();
+                int length = in.getInt();
+                int encoding = in.get() & 0xFF;
+                byte[] hash = null;
+                if(version > 1) {
+                    hash = new byte[DIGEST_LENGTH];
+                    in.get(hash);
+                }
+                if(encoding == ChunkCodec.EMPTY) {
+                    if(length != 0 || hash != null && !Arrays.equals(hash, LevelGrid.EMPTY_HASH))
+                        throw new LevelFormatException(Reason.CORRUPT_INDEX, entry, "chunk " + i);
+                    continue;
+                }
+                if(encoding > ChunkCodec.DEFLATE || offset < dataStart || length <= 0 || length > ChunkCodec.MAX_ENCODED || (long) offset + length > indexOffset)
+                    throw new LevelFormatException(Reason.CORRUPT_INDEX, entry, "chunk " + i);
+                source.offsets[i] = offset;
+                source.lengths[i] = length;
+                source.encodings[i] = (byte) encoding;
+                tiles.setPendingChunk((int) (c % chunksX), (int) (c / chunksX), i);
+                if(hash != null) {
+                    source.hashes[i] = hash;
+                    tiles.setChunkHash((int) (c % chunksX), (int) (c / chunksX), hash);
+                }
+            }
+            layers.add(tiles);
+        }
+
+        Level level = new Level(layers, scrollSpeed);
+        for(Entity e : entities)
+            level.addEntity(e);
+        return level;
+    }
+
+    private List<Entity> readEntities(int numSprites, int numTriggers) throws LevelFormatException {
+        require(numSprites * SPRITE_LENGTH + numTriggers * TRIGGER_LENGTH);
+        List<Entity> entities = new ArrayList<>(numSprites + numTriggers);
+        for(int i = 0; i < numSprites; i++)
+            entities.add(Entity.sprite(in.getInt(), in.getInt(), in.getShort() & 0xFFFF));
+        for(int i = 0; i < numTriggers; i++) {
+            int position = in.position();
+            int x = in.getInt(), y = in.getInt();
+            int width = in.getShort() & 0xFFFF, height = in.getShort() & 0xFFFF;
+            int event = in.getShort() & 0xFFFF;
+            if(width == 0 || height == 0)
+                throw new LevelFormatException(Reason.BAD_ENTITY, position, "trigger " + i + " is " + width + "x" + height);
+            entities.add(Entity.trigger(x, y, width, height, event));
+        }
+        return entities;
+    }
+
+    private void verifyDigest() throws LevelFormatException {
+        int position = in.position();
+        in.position(end);
+        hash();
+        in.position(position);
+        byte[] sig = sha.digest();
+        for(int j = 0; j < DIGEST_LENGTH; j++) {
+            if(sig[j] != in.get(end + j)) // Signature mismatch
+                throw new LevelFormatException(Reason.BAD_CHECKSUM, end);
+        }
+    }
+
+    private void require(int count) throws LevelFormatException {
+        if(count > end - in.position())
+            throw new LevelFormatException(Reason.TRUNCATED, in.position(), "needed " + count + " more bytes");
+    }
+
+    private void hash() {
+        ByteBuffer range = in.duplicate();
+        range.limit(in.position()).position(hashed);
+        sha.update(range);
+        hashed = in.position();
+    }
+
+    /**
+     * Decodes version 1 and 2 chunks straight out of the mapped file. Version
+     * 2 chunks are checked against their hashes, reading as empty if they fail, and can also be looked up by
+     * hash to be copied as they are into a new file.
+     */
+    static class MappedChunks implements LevelGrid.ChunkSource {
+        private final ByteBuffer data;
+        final int[] offsets, lengths;
+        final byte[] encodings;
+        final byte[][] hashes; // Null before version 2
+        byte[] digest; // The file's checked trailing digest, from version 2 on
+        private HashMap<ByteBuffer, Integer> byHash; // Built on first use
+        private final int numChunks, chunksX, lastWidth, lastHeight, lastRow; // numChunks per layer
+        private final ChunkCodec codec = new ChunkCodec();
+        private final byte[] buffer = new byte[ChunkCodec.MAX_ENCODED];
+        private LevelFormatException error; // First chunk that couldn't be loaded
+
+        MappedChunks(ByteBuffer data, int numEntries, int width, int height, boolean hashed) {
+            this.data = data.duplicate();
+            offsets = new int[numEntries];
+            lengths = new int[numEntries];
+            encodings = new byte[numEntries];
+            hashes = hashed ? new byte[numEntries][] : null;
+            chunksX = (width + LevelGrid.CHUNK_MASK) >> LevelGrid.CHUNK_BITS;
+            numChunks = Math.max(1, chunksX * ((height + LevelGrid.CHUNK_MASK) >> LevelGrid.CHUNK_BITS));
+            lastWidth = width - ((chunksX - 1) << LevelGrid.CHUNK_BITS);
+            lastRow = ((height + LevelGrid.CHUNK_MASK) >> LevelGrid.CHUNK_BITS) - 1;
+            lastHeight = height - (lastRow << LevelGrid.CHUNK_BITS);
+        }
+
+        @Override
+        public synchronized byte[] loadChunk(int ref) {
+            data.position(offsets[ref]);
+            data.get(buffer, 0, lengths[ref]);
+            byte[] chunk = codec.decode(encodings[ref], buffer, 0, lengths[ref]);
+            if(chunk == null)
+                return damaged(ref, "doesn't decode");
+            // Cells past the edge of the level must read as empty if it grows later
+            int c = ref % numChunks;
+            if(c % chunksX == chunksX - 1)
+                Arrays.fill(chunk, lastWidth << LevelGrid.CHUNK_BITS, chunk.length, (byte) 0);
+            if(c / chunksX == lastRow)
+                for(int x = 0; x < LevelGrid.CHUNK_SIZE; x++)
+                    Arrays.fill(chunk, (x << LevelGrid.CHUNK_BITS) + lastHeight, (x + 1) << LevelGrid.CHUNK_BITS, (byte) 0);
+            if(hashes != null && !Arrays.equals(LevelGrid.hashChunk(chunk), hashes[ref]))
+                return damaged(ref, "doesn't match its hash");
+            return chunk;
+        }
+
+        private byte[] damaged(int ref, String problem) {
+            if(error == null)
+                error = new LevelFormatException(Reason.CORRUPT_CHUNK, offsets[ref], "chunk " + ref + " " + problem);
+            return null;
+        }
+
+        @Override
+        public synchronized LevelFormatException getError() {
+            return error;
+        }
+
+        /** Returns a chunk whose tiles hash to {@code hash}, or -1 if there is none. */
+        synchronized int find(byte[] hash) {
+            if(hashes == null)
+                return -1;
+            if(byHash == null) {
+                byHash = new HashMap<>();
+                for(int i = 0; i < hashes.length; i++)
+                    if(hashes[i] != null)
+                        byHash.put(ByteBuffer.wrap(hashes[i]), i);
+            }
+            Integer ref = byHash.get(ByteBuffer.wrap(hash));
+            return ref == null ? -1 : ref;
+        }
+
+        /** Copies the encoded bytes of chunk {@code ref} into {@code dst}. Returns how many there are. */
+        synchronized int copyEncoded(int ref, byte[] dst) {
+            data.position(offsets[ref]);
+            data.get(dst, 0, lengths[ref]);
+            return lengths[ref];
+        }
+    }
+}
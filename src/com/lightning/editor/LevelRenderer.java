@@ -0,0 +1,356 @@
+package com.lightning.editor;
+
+import com.googlecode.lanterna.SGR;
+import com.googlecode.lanterna.TextColor;
+import com.googlecode.lanterna.graphics.TextGraphics;
+import com.googlecode.lanterna.screen.Screen;
+
+import java.util.Arrays;
+
+/**
+ * Draws the hex view of a level, remembering what every on-screen cell shows so
+ * that each frame only touches cells whose tile actually changed.
+ *
+ * Tiles of the layer being edited are drawn normally. Where it is empty, the
+ * topmost visible layer with a tile there shows through in grey. Sprites are
+ * drawn on a blue background and tiles inside a trigger are underlined; the
+ * entities are looked up in the {@link EntityIndex} for just the cells being
+ * drawn.
+ *
+ * In the colour preview set with {@link #setPreview}, every tile inside the
+ * level is drawn in the average colour of its tileset image instead of as hex,
+ * or as four quarters using half block characters. Selected tiles and sprites
+ * are still drawn as hex so they stand out.
+ *
+ * {@link #renderZoomed} draws a zoomed out overview instead, shading each
+ * block of tiles by how many of them aren't empty.
+ */
+public class LevelRenderer {
+    private static final String[] HEX = new String[256];
+    static {
+        char[] digits = "0123456789ABCDEF".toCharArray();
+        HEX[0] = "  "; // Empty tiles are left blank
+        for(int i = 1; i < 256; i++)
+            HEX[i] = new String(new char[] { digits[i >> 4], digits[i & 0xF] });
+    }
+
+    private static final TextColor OTHER_LAYER_COLOR = new TextColor.RGB(128, 128, 128);
+    private static final TextColor SPRITE_COLOR = new TextColor.RGB(0, 0, 170);
+    private static final int SHADES = 16;
+    private static final TextColor[] SHADE_COLOR = new TextColor[SHADES];
+    static {
+        SHADE_COLOR[0] = TextColor.ANSI.BLACK;
+        for(int i = 1; i < SHADES; i++)
+            SHADE_COLOR[i] = new TextColor.RGB(40 + i*14, 40 + i*14, 40 + i*14);
+    }
+
+    private Level level;
+    private int layer;
+    private int width = -1, height = -1;
+    private int cols, rows;
+    private int xScroll, yScroll;
+    private short[] drawn; // tile shown by each on-screen cell, plus SELECTED, OTHER_LAYER and entity flags, -1 if unknown
+    private short[] marks; // Entity flags of each on-screen cell, for the cells being drawn
+    private boolean invalid = true;
+    private TextColor[] tileColors; // Preview colour of each tile, null for the hex view
+    private TextColor[] quarterColors; // Preview colour of each quarter of each tile, null unless shading quarters
+    private short[] shaded; // Shades drawn by each on-screen cell of the zoomed view, -1 if unknown
+    private boolean zoomed = false; // The screen shows the zoomed view
+    private int zoomedWidth;
+
+    private boolean dirty = false;
+    private int dirtyMinX, dirtyMinY, dirtyMaxX, dirtyMaxY; // level coordinates, inclusive
+
+    private static final int SELECTED = 0x100;
+    private static final int OTHER_LAYER = 0x200;
+    private static final int SPRITE = 0x400;
+    private static final int TRIGGER = 0x800;
+    private static final int PREVIEW = 0x1000;
+    private boolean selecting = false;
+    private int selMinX, selMinY, selMaxX, selMaxY; // level coordinates, inclusive
+
+    public static String hex(int value) {
+        return HEX[value & 0xFF];
+    }
+
+    /** Forgets everything known about the screen, forcing the next frame to redraw every cell. */
+    public void invalidate() {
+        invalid = true;
+    }
+
+    /**
+     * Colours tiles with the average colours of {@code tileset}, or of each
+     * quarter of a tile if {@code quarters} is set. A null tileset goes back
+     * to the hex view.
+     */
+    public void setPreview(Tileset tileset, boolean quarters) {
+        tileColors = null;
+        quarterColors = null;
+        if(tileset != null) {
+            tileColors = new TextColor[256];
+            for(int i = 0; i < tileColors.length; i++)
+                tileColors[i] = rgb(tileset.getColor(i));
+            if(quarters) {
+                quarterColors = new TextColor[256*4];
+                for(int i = 0; i < quarterColors.length; i++)
+                    quarterColors[i] = rgb(tileset.getQuarterColor(i / 4, i % 4));
+            }
+        }
+        invalid = true;
+    }
+
+    public boolean isPreview() {
+        return tileColors != null;
+    }
+
+    private static TextColor rgb(int color) {
+        return new TextColor.RGB(color >> 16 & 0xFF, color >> 8 & 0xFF, color & 0xFF);
+    }
+
+    /** Marks the tile at level position (x, y) as changed. */
+    public void markDirty(int x, int y) {
+        markDirty(x, y, x, y);
+    }
+
+    /** Marks every tile in the inclusive rectangle (x0, y0)-(x1, y1) as changed. */
+    public void markDirty(int x0, int y0, int x1, int y1) {
+        if(!dirty) {
+            dirty = true;
+            dirtyMinX = x0;
+            dirtyMinY = y0;
+            dirtyMaxX = x1;
+            dirtyMaxY = y1;
+        } else {
+            dirtyMinX = Math.min(dirtyMinX, x0);
+            dirtyMinY = Math.min(dirtyMinY, y0);
+            dirtyMaxX = Math.max(dirtyMaxX, x1);
+            dirtyMaxY = Math.max(dirtyMaxY, y1);
+        }
+    }
+
+    /** Highlights the rectangle with corners (x0, y0) and (x1, y1), given in any order. */
+    public void setSelection(int x0, int y0, int x1, int y1) {
+        clearSelection();
+        selecting = true;
+        selMinX = Math.min(x0, x1);
+        selMinY = Math.min(y0, y1);
+        selMaxX = Math.max(x0, x1);
+        selMaxY = Math.max(y0, y1);
+        markDirty(selMinX, selMinY, selMaxX, selMaxY);
+    }
+
+    public void clearSelection() {
+        if(selecting) {
+            selecting = false;
+            markDirty(selMinX, selMinY, selMaxX, selMaxY);
+        }
+    }
+
+    /**
+     * Brings the level area (every row but the last) up to date, with
+     * {@code newLayer} as the layer being edited. Returns the number of cells
+     * that had to be drawn.
+     */
+    public int render(Screen screen, TextGraphics graphics, Level newLevel, int newLayer, int newXScroll, int newYScroll, int newWidth, int newHeight) {
+        if(zoomed) {
+            zoomed = false;
+            invalid = true;
+        }
+        if(newWidth != width || newHeight != height) {
+            width = newWidth;
+            height = newHeight;
+            cols = (width + 1) / 2;
+            rows = Math.max(0, height - 1);
+            drawn = new short[cols*rows];
+            marks = new short[cols*rows];
+            invalid = true;
+        }
+
+        boolean full = invalid || newLevel != level || newLayer != layer || newXScroll != xScroll;
+        int dy = newYScroll - yScroll;
+        if(!invalid && dy != 0) {
+            full = true;
+            if(Math.abs(dy) < rows) {
+                // Let the screen move the rows that stay visible instead of redrawing them
+                screen.scrollLines(0, rows-1, dy);
+                if(dy > 0) {
+                    System.arraycopy(drawn, dy*cols, drawn, 0, (rows-dy)*cols);
+                    Arrays.fill(drawn, (rows-dy)*cols, rows*cols, (short) -1);
+                } else {
+                    System.arraycopy(drawn, 0, drawn, -dy*cols, (rows+dy)*cols);
+                    Arrays.fill(drawn, 0, -dy*cols, (short) -1);
+                }
+            } else {
+                invalid = true;
+            }
+        }
+        if(invalid) {
+            Arrays.fill(drawn, (short) -1);
+            invalid = false;
+        }
+
+        level = newLevel;
+        layer = newLayer;
+        xScroll = newXScroll;
+        yScroll = newYScroll;
+
+        int firstCol = 0, lastCol = cols - 1, firstRow = 0, lastRow = rows - 1;
+        if(!full) {
+            if(!dirty)
+                return 0;
+            // Entities can mark cells dirty out to the ends of the int range, so work in longs
+            firstCol = clamp((dirtyMinX*2L - xScroll) >> 1, 0, cols);
+            lastCol = clamp((dirtyMaxX*2L - xScroll + 1) >> 1, -1, cols - 1);
+            firstRow = clamp((long) dirtyMinY - yScroll, 0, rows);
+            lastRow = clamp((long) dirtyMaxY - yScroll, -1, rows - 1);
+        }
+        dirty = false;
+
+        markEntities(firstCol, firstRow, lastCol, lastRow);
+        LevelGrid active = level == null || !level.isVisible(layer) ? null : level.getLayer(layer);
+        boolean composite = level != null && level.getLayerCount() > 1;
+        TextColor foreground = graphics.getForegroundColor();
+        TextColor background = graphics.getBackgroundColor();
+        int count = 0;
+        for(int j = firstRow; j <= lastRow; j++) {
+            int yPosition = yScroll + j;
+            int index = j*cols + firstCol;
+            for(int i = firstCol; i <= lastCol; i++, index++) {
+                int xPosition = (xScroll >> 1) + i;
+                int shown = active == null ? 0 : active.get(xPosition, yPosition) & 0xFF;
+                if(shown == 0 && composite) {
+                    int value = level.getVisibleTile(xPosition, yPosition) & 0xFF;
+                    if(value != 0)
+                        shown = value | OTHER_LAYER;
+                }
+                boolean selected = selecting && xPosition >= selMinX && xPosition <= selMaxX && yPosition >= selMinY && yPosition <= selMaxY;
+                if(selected)
+                    shown |= SELECTED;
+                shown |= marks[index];
+                if(tileColors != null && (shown & (SELECTED | SPRITE)) == 0 && level.getTiles().contains(xPosition, yPosition))
+                    shown |= PREVIEW;
+                if(drawn[index] == shown)
+                    continue;
+                drawn[index] = (short) shown;
+                if((shown & PREVIEW) != 0) {
+                    drawPreview(graphics, i*2, j, shown);
+                    graphics.setForegroundColor(foreground);
+                    graphics.setBackgroundColor(background);
+                    count++;
+                    continue;
+                }
+                if((shown & OTHER_LAYER) != 0)
+                    graphics.setForegroundColor(OTHER_LAYER_COLOR);
+                if((shown & SPRITE) != 0)
+                    graphics.setBackgroundColor(SPRITE_COLOR);
+                if((shown & TRIGGER) != 0)
+                    graphics.enableModifiers(SGR.UNDERLINE);
+                if(selected)
+                    graphics.enableModifiers(SGR.REVERSE);
+                graphics.putString(i*2, j, HEX[shown & 0xFF]);
+                graphics.disableModifiers(SGR.REVERSE, SGR.UNDERLINE);
+                graphics.setForegroundColor(foreground);
+                graphics.setBackgroundColor(background);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Draws the level area zoomed out so that each character covers a column
+     * of two blocks of 2^{@code bits} by 2^{@code bits} tiles, one per half
+     * of the character, with (x0, y0) the top left tile. Each block is
+     * shaded by how many of its tiles some visible layer fills. The counts
+     * come from {@link LevelGrid#countBlock}, so a frame costs the same
+     * however far out it is zoomed. Returns the number of cells drawn.
+     */
+    public int renderZoomed(TextGraphics graphics, Level newLevel, int bits, int x0, int y0, int newWidth, int newHeight) {
+        int newRows = Math.max(0, newHeight - 1);
+        if(!zoomed || newWidth != zoomedWidth || shaded.length != newWidth*newRows) {
+            shaded = new short[newWidth*newRows];
+            Arrays.fill(shaded, (short) -1);
+        }
+        zoomed = true;
+        zoomedWidth = newWidth;
+
+        int size = 1 << bits;
+        TextColor foreground = graphics.getForegroundColor();
+        TextColor background = graphics.getBackgroundColor();
+        int count = 0;
+        for(int j = 0; j < newRows; j++) {
+            for(int i = 0; i < newWidth; i++) {
+                int x = x0 + i*size, y = y0 + j*2*size;
+                int top = newLevel == null ? 0 : shade(newLevel, bits, x, y);
+                int bottom = newLevel == null ? 0 : shade(newLevel, bits, x, y + size);
+                short shown = (short) (top << 4 | bottom);
+                if(shaded[j*newWidth + i] == shown)
+                    continue;
+                shaded[j*newWidth + i] = shown;
+                if(shown == 0) {
+                    graphics.setCharacter(i, j, ' ');
+                } else {
+                    graphics.setForegroundColor(SHADE_COLOR[top]);
+                    graphics.setBackgroundColor(SHADE_COLOR[bottom]);
+                    graphics.setCharacter(i, j, '\u2580'); // Upper half block
+                    graphics.setForegroundColor(foreground);
+                    graphics.setBackgroundColor(background);
+                }
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static int clamp(long value, int min, int max) {
+        return (int) Math.max(min, Math.min(max, value));
+    }
+
+    /** Returns the shade of the block at (x, y): 0 if it is empty, up to SHADES-1 if it is full. */
+    private static int shade(Level level, int bits, int x, int y) {
+        int filled = 0;
+        for(int i = 0; i < level.getLayerCount(); i++)
+            if(level.isVisible(i))
+                filled += level.getLayer(i).countBlock(bits, x, y);
+        if(filled == 0)
+            return 0;
+        // Layers can overlap, so the sum is capped at the block size
+        int area = 1 << 2*bits;
+        return 1 + (int) ((long) Math.min(filled, area)*(SHADES - 2) / area);
+    }
+
+    private void drawPreview(TextGraphics graphics, int column, int row, int shown) {
+        int tile = shown & 0xFF;
+        if((shown & TRIGGER) != 0)
+            graphics.enableModifiers(SGR.UNDERLINE);
+        if(quarterColors == null) {
+            graphics.setBackgroundColor(tileColors[tile]);
+            graphics.putString(column, row, "  ");
+        } else {
+            for(int half = 0; half < 2; half++) {
+                graphics.setForegroundColor(quarterColors[tile*4 + half]);
+                graphics.setBackgroundColor(quarterColors[tile*4 + 2 + half]);
+                graphics.setCharacter(column + half, row, '\u2580'); // Upper half block
+            }
+        }
+        graphics.disableModifiers(SGR.UNDERLINE);
+    }
+
+    /** Fills in {@link #marks} for the given range of on-screen cells. */
+    private void markEntities(int firstCol, int firstRow, int lastCol, int lastRow) {
+        for(int j = firstRow; j <= lastRow; j++)
+            Arrays.fill(marks, j*cols + firstCol, j*cols + lastCol + 1, (short) 0);
+        if(level == null || level.getEntities().size() == 0 || firstCol > lastCol || firstRow > lastRow)
+            return;
+        int x0 = (xScroll >> 1) + firstCol, y0 = yScroll + firstRow;
+        int x1 = (xScroll >> 1) + lastCol, y1 = yScroll + lastRow;
+        level.getEntities().query(x0, y0, x1, y1, e -> {
+            short flag = (short) (e.getKind() == Entity.Kind.SPRITE ? SPRITE : TRIGGER);
+            int i0 = Math.max(x0, e.getX()) - (xScroll >> 1), i1 = (int) Math.min(x1, e.getMaxX()) - (xScroll >> 1);
+            int j0 = Math.max(y0, e.getY()) - yScroll, j1 = (int) Math.min(y1, e.getMaxY()) - yScroll;
+            for(int j = j0; j <= j1; j++)
+                for(int i = i0; i <= i1; i++)
+                    marks[j*cols + i] |= flag;
+        });
+    }
+}
@@ -0,0 +1,214 @@
+package com.lightning.editor;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+/**
+ * Writes .lvl files. The level is streamed through the
+ * SHA-256 digest into a temporary file next to the target, which is synced
+ * and then renamed over the target, so a crash never leaves a half-written
+ * level behind.
+ *
+ * When writing version 2 over an existing version 2 file, every chunk whose
+ * hash is already in that file is copied from it as it is. Together with the
+ * hashes {@link LevelGrid} keeps, saving after a small edit only hashes and
+ * encodes the chunks that changed. Copied chunks aren't decoded again: the
+ * index still holds the hash of their tiles, so a damaged one is caught when
+ * the new file is read, just as it would have been in the old one.
+ */
+public class LevelWriter {
+    public static final int CURRENT_VERSION = 2;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    public static void write(Level level, Path path) throws IOException {
+        write(level, path, CURRENT_VERSION);
+    }
+
+    public static void write(Level level, Path path, int version) throws IOException {
+        write(level, path, version, null);
+    }
+
+    /** Writes {@code level}, reporting the percentage written so far to {@code progress} if it isn't null. */
+    public static void write(Level level, Path path, int version, IntConsumer progress) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        boolean moved = false;
+        try {
+            try(FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                MessageDigest sha = LevelReader.newDigest();
+                DigestOutputStream digestOut = new DigestOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE), sha);
+                DataOutputStream out = new DataOutputStream(digestOut);
+                writeBody(level, out, digestOut, version, progress, version >= 2 ? LevelReader.readChunks(path) : null);
+                digestOut.on(false);
+                out.write(sha.digest());
+                out.flush();
+                channel.force(true);
+            }
+            try {
+                Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch(AtomicMoveNotSupportedException e) {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+            moved = true;
+            syncDirectory(path.toAbsolutePath().getParent());
+        } finally {
+            if(!moved)
+                Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Writes everything but the trailing digest. {@code out} must write through
+     * {@code digest}, which version 2 turns off for the chunk data. Chunks found
+     * in {@code previous}, if it isn't null, are copied from there.
+     */
+    static void writeBody(Level level, DataOutputStream out, DigestOutputStream digest, int version, IntConsumer progress,
+            LevelReader.MappedChunks previous) throws IOException {
+        if(version == 0)
+            writeVersion0(level, out, progress);
+        else if(version == 1 || version == 2)
+            writeChunked(level, out, digest, version, progress, previous);
+        else
+            throw new IllegalArgumentException("Unknown level version " + version);
+    }
+
+    private static void writeVersion0(Level level, DataOutputStream out, IntConsumer progress) throws IOException {
+        int numLayers = level.getLayerCount();
+        int numColumns = level.getWidth();
+        int numCells = level.getHeight();
+        if(numColumns > 0xFFFF || numCells > 0xFF)
+            throw new IOException("Level is too large to save: " + numColumns + "x" + numCells);
+
+        out.write(LevelReader.MAGIC);
+        out.writeShort(0); // Version
+
+        out.writeByte(numLayers);
+        byte[] column = new byte[numCells];
+        for(int layer = 0; layer < numLayers; layer++) {
+            LevelGrid tiles = level.getLayer(layer);
+            out.writeShort(numColumns);
+            for(int j = 0; j < numColumns; j++) {
+                tiles.getColumn(j, 0, column, 0, numCells);
+                out.writeByte(numCells);
+                out.write(column);
+                if(progress != null && (j & 0xFF) == 0)
+                    progress.accept((int) ((layer * (long) numColumns + j) * 100 / ((long) numLayers * numColumns)));
+            }
+        }
+        out.writeFloat(level.getScrollSpeed()); // Background scroll speed relative to player
+        writeEntities(level, out);
+    }
+
+    private static void writeChunked(Level level, DataOutputStream out, DigestOutputStream digest, int version, IntConsumer progress,
+            LevelReader.MappedChunks previous) throws IOException {
+        int numLayers = level.getLayerCount();
+        int chunksX = (level.getWidth() + LevelGrid.CHUNK_MASK) >> LevelGrid.CHUNK_BITS;
+        int chunksY = (level.getHeight() + LevelGrid.CHUNK_MASK) >> LevelGrid.CHUNK_BITS;
+        long numEntries = (long) chunksX * chunksY * numLayers;
+        if(numEntries > Integer.MAX_VALUE / LevelReader.HASHED_ENTRY_LENGTH)
+            throw new IOException("Level is too large to save: " + level.getWidth() + "x" + level.getHeight() + ", " + numLayers + " layers");
+
+        out.write(LevelReader.MAGIC);
+        out.writeShort(version);
+
+        out.writeByte(numLayers);
+        out.writeInt(level.getWidth());
+        out.writeInt(level.getHeight());
+        out.writeByte(LevelGrid.CHUNK_BITS);
+        out.writeFloat(level.getScrollSpeed()); // Background scroll speed relative to player
+        writeEntities(level, out);
+
+        int[] offsets = new int[(int) numEntries];
+        int[] lengths = new int[(int) numEntries];
+        byte[] encodings = new byte[(int) numEntries];
+        byte[][] hashes = version == 1 ? null : new byte[(int) numEntries][];
+        ChunkCodec codec = new ChunkCodec();
+        byte[] chunk = new byte[ChunkCodec.CHUNK_BYTES];
+        byte[] encoded = new byte[ChunkCodec.MAX_ENCODED];
+        digest.on(version == 1);
+        int i = 0;
+        for(int layer = 0; layer < numLayers; layer++) {
+            LevelGrid tiles = level.getLayer(layer);
+            for(int cy = 0; cy < chunksY; cy++) {
+                for(int cx = 0; cx < chunksX; cx++, i++) {
+                    int ref = -1;
+                    if(hashes != null) {
+                        hashes[i] = tiles.getChunkHash(cx, cy);
+                        if(Arrays.equals(hashes[i], LevelGrid.EMPTY_HASH))
+                            continue;
+                        ref = previous == null ? -1 : previous.find(hashes[i]);
+                    }
+                    if(ref >= 0) {
+                        encodings[i] = previous.encodings[ref];
+                        lengths[i] = previous.copyEncoded(ref, encoded);
+                    } else {
+                        if(!tiles.copyChunk(cx, cy, chunk))
+                            continue;
+                        encodings[i] = (byte) codec.encode(chunk, encoded);
+                        lengths[i] = codec.length();
+                    }
+                    offsets[i] = out.size();
+                    out.write(encoded, 0, lengths[i]);
+                }
+                if(progress != null)
+                    progress.accept((int) ((layer * (long) chunksY + cy + 1) * 100 / ((long) numLayers * chunksY)));
+            }
+        }
+
+        digest.on(true);
+        int indexOffset = out.size();
+        for(i = 0; i < numEntries; i++) {
+            out.writeInt(offsets[i]);
+            out.writeInt(lengths[i]);
+            out.writeByte(encodings[i]);
+            if(hashes != null)
+                out.write(hashes[i]);
+        }
+        out.writeInt(indexOffset);
+        if(out.size() == Integer.MAX_VALUE) // The byte count saturates instead of overflowing
+            throw new IOException("Level is too large to save");
+    }
+
+    private static void writeEntities(Level level, DataOutputStream out) throws IOException {
+        List<Entity> sprites = level.getEntities().getSprites();
+        List<Entity> triggers = level.getEntities().getTriggers();
+        if(sprites.size() > 0xFFFF || triggers.size() > 0xFFFF)
+            throw new IOException("Too many entities to save: " + sprites.size() + " sprites, " + triggers.size() + " triggers");
+        out.writeShort(sprites.size());
+        out.writeShort(triggers.size());
+        for(Entity e : sprites) {
+            out.writeInt(e.getX());
+            out.writeInt(e.getY());
+            out.writeShort(e.getId());
+        }
+        for(Entity e : triggers) {
+            out.writeInt(e.getX());
+            out.writeInt(e.getY());
+            out.writeShort(e.getWidth());
+            out.writeShort(e.getHeight());
+            out.writeShort(e.getId());
+        }
+    }
+
+    private static void syncDirectory(Path dir) {
+        if(dir == null)
+            return;
+        try(FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch(IOException e) {
+            // Not every platform lets directories be opened; the rename itself already happened
+        }
+    }
+}
@@ -11,30 +11,77 @@ import com.googlecode.lanterna.screen.TerminalScreen;
 import com.googlecode.lanterna.terminal.DefaultTerminalFactory;
 import com.googlecode.lanterna.terminal.Terminal;
 
-import java.awt.Graphics2D;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.MessageDigest;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-
-import javax.imageio.ImageIO;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 public class Main {
-    private static BufferedImage[] tiles;
-    private static int tileSize;
+    private static Future<Tileset> tileset; // Loaded in the background, see getTileset()
     private static boolean saved = true;
     private static int xScroll = 0, yScroll = 0;
     private static int xPos = 0, yPos = 0;
     private static String filename = null;
+    private static String lastError = null;
+    private static LevelFormatException reportedChunkError = null;
+    
+    private static Level curLevel = null;
+    private static int layer = 0; // Layer of curLevel being edited
+    private static final int MAX_ZOOM = LevelGrid.CHUNK_BITS;
+    private static int zoom = 0; // Each character of the zoomed view covers 2^zoom tiles across, 0 for the hex view
+    private static int zoomX, zoomY; // Top left tile of the zoomed view
+    private static final LevelRenderer renderer = new LevelRenderer();
+    private static final UndoJournal journal = new UndoJournal(Long.getLong("levim.undoBytes", 64L << 20));
+    
+    private static final BackgroundWriter writer = new BackgroundWriter();
+    private static final int swapEditCount = Integer.getInteger("levim.swapEdits", 200);
+    private static final long swapDelay = Long.getLong("levim.swapMillis", 4000);
+    private static long edits = 0; // Bumped on every change to the level
+    private static long swapEdits = 0; // Value of edits when the swap file was last written
+    private static long savingEdits = -1; // Value of edits when the last :w was queued
+    private static long lastEditTime = 0;
+    private static Path swapFile = null; // Swap file of the current level, if one was written
+    private static String shownProgress = "";
+    
+    private static TileBlock clipboard = null;
+    private static int anchorX, anchorY; // Tile where the visual block selection started
+    private static int searchTile = -1; // Tile ID of the last / search
     
-    private static ArrayList<ArrayList<Byte>> curLevel = null;
+    private static final EditorStats stats = new EditorStats();
+    private static long keyTime = -1; // When the key being handled was read, until the next refresh
+    private static long renderNanos = 0; // Spent rendering since the last refresh
+    private static int renderedCells = 0;
+    private static final ArrayDeque<KeyStroke> typedAhead = new ArrayDeque<>(); // Keys read early by keyWaiting()
+    private static final LinkedBlockingQueue<KeyStroke> input = new LinkedBlockingQueue<>(); // Filled by the input thread
+    private static final KeyStroke WAKE_UP = new KeyStroke(KeyType.Unknown); // Queued by the writer so readKey looks at it
+    private static final int MAX_COUNT = 9999999;
+    private static final LevelGrid.ChangeListener recordChange = (x, y, oldValue, newValue) -> {
+        journal.record(x, y, oldValue, newValue);
+        renderer.markDirty(x, y);
+    };
     
     public static void main(String[] args) throws IOException {
+        long startTime = System.nanoTime();
+        if(args.length > 0 && args[0].equals("--batch")) {
+            System.exit(new BatchRunner().run(Arrays.copyOfRange(args, 1, args.length)));
+        }
+        if(args.length > 0 && args[0].equals("--diff")) {
+            System.exit(new LevelDiff().run(Arrays.copyOfRange(args, 1, args.length)));
+        }
+        
         Terminal terminal = new DefaultTerminalFactory().createTerminal();
         Screen screen = new TerminalScreen(terminal);
         TextGraphics tGraphics = screen.newTextGraphics();
@@ -42,18 +89,22 @@ public class Main {
         screen.startScreen();
         screen.clear();
         
-        {
-            tGraphics.setBackgroundColor(new TextColor.RGB(0, 0, 0));
-            tGraphics.setForegroundColor(new TextColor.RGB(255, 255, 255));
-            tGraphics.putString(0, 0, "Loading...");
-            screen.refresh();
-            
-            BufferedImage tileset = ImageIO.read(new File("assets/tileset.png"));
-            tiles = new BufferedImage[256];
-            tileSize = tileset.getWidth()/16;
-            for(int x = 0; x < 16; x++) {
-                for(int y = 0; y < 16; y++) {
-                    tiles[x+y*16] = tileset.getSubimage(x*tileSize, y*tileSize, tileSize, tileSize);
+        tGraphics.setBackgroundColor(new TextColor.RGB(0, 0, 0));
+        tGraphics.setForegroundColor(new TextColor.RGB(255, 255, 255));
+        startInputThread(screen);
+        writer.setListener(() -> input.offer(WAKE_UP));
+        
+        if(args.length > 0) { // levim <file>
+            filename = args[0];
+            tGraphics.putString(0, termHeight(tGraphics)-1, loadLevel() ? "Loaded " + filename : "Load failed: " + lastError);
+            Path swap = swapPath(filename);
+            if(Files.exists(swap))
+                offerRecovery(swap, screen, tGraphics);
+        } else {
+            try(DirectoryStream<Path> swaps = Files.newDirectoryStream(Paths.get("."), ".*.lvl.swp")) {
+                for(Path swap : swaps) {
+                    if(offerRecovery(swap.normalize(), screen, tGraphics))
+                        break;
                 }
             }
         }
@@ -62,6 +113,7 @@ public class Main {
         
         boolean quit = false;
         int mode = 0; // Quick Mode
+        int prefix = 0; // Count typed before a quick or visual mode command, 0 if none
         while(!quit) {
             TerminalSize termSize = tGraphics.getSize();
             int width = termSize.getColumns();
@@ -72,51 +124,204 @@ public class Main {
             }
             String clearRow = clearBuilder.toString();
             
-            renderLevel(width, height, clearRow, tGraphics);
-            
-            screen.refresh();
+            if(!keyWaiting(screen)) { // Otherwise draw once the keys typed ahead have all been handled
+                renderLevel(width, height, screen, tGraphics);
+                LevelFormatException chunkError = curLevel == null ? null : curLevel.getChunkError();
+                if(chunkError != null && chunkError != reportedChunkError) {
+                    reportedChunkError = chunkError;
+                    tGraphics.putString(0, height-1, "Level file is damaged: " + chunkError.getMessage() + ", shown as empty");
+                }
+                refresh(screen);
+            }
+            if(startTime != 0) { // First frame
+                if(Boolean.getBoolean("levim.showStartup"))
+                    showStartupTime(startTime, height, screen, tGraphics);
+                startTime = 0;
+                if(tileset == null) // Not before now, so it doesn't slow down startup
+                    tileset = Tileset.loadInBackground(Paths.get(Tileset.DEFAULT_PATH));
+            }
             
             if(mode == 0) { // Quick mode
-                KeyStroke result = screen.readInput();
-                if(result.getKeyType() == KeyType.Escape) {
+                KeyStroke result = readKey(screen, tGraphics, false);
+                int repeat = Math.max(1, prefix);
+                boolean digit = isCountDigit(result, prefix);
+                prefix = digit ? Math.min(prefix*10 + result.getCharacter() - '0', MAX_COUNT) : 0;
+                if(digit) {
+                    // Count for the next command
+                } else if(result.getKeyType() == KeyType.Escape) {
                     // do nothing
-                } else if(result.getKeyType() == KeyType.ArrowLeft) {
-                    if(xPos <= xScroll) {
-                        xScroll-=2;
-                        renderLevel(width, height, clearRow, tGraphics);
+                } else if(moveCursor(movement(result), zoom > 0 ? (long) repeat << zoom + 1 : repeat, width, height, screen)) {
+                    // Moved, by a whole character of the zoomed view if zoomed out
+                } else if(result.getKeyType() != KeyType.Character) {
+                    // Do nothing
+                } else if(result.getCharacter() == 'z' || result.getCharacter() == 'Z') {
+                    tGraphics.putString(0, height-1, clearRow);
+                    if(curLevel == null) {
+                        tGraphics.putString(0, height-1, "Can't zoom: no active file!");
+                    } else {
+                        int step = result.getCharacter() == 'z' ? repeat : -repeat;
+                        setZoom((int) Math.max(0, Math.min(MAX_ZOOM, (long) zoom + step)), screen);
+                        tGraphics.putString(0, height-1, zoom == 0 ? "Hex view" : "Zoom 1:" + (1 << zoom) + "  z: out, Z: in");
                     }
-                    xPos--;
-                } else if(result.getKeyType() == KeyType.ArrowRight) {
-                    xPos++;
-                    if(xPos >= xScroll+width) {
-                        xScroll+=2;
-                        renderLevel(width, height, clearRow, tGraphics);
+                } else if(result.getCharacter() == 'r' && result.isCtrlDown()) {
+                    tGraphics.putString(0, height-1, clearRow);
+                    int redone = 0;
+                    while(redone < repeat && curLevel != null && journal.redo(curLevel)) {
+                        showChange(width, height, screen);
+                        redone++;
                     }
-                } else if(result.getKeyType() == KeyType.ArrowUp) {
-                    if(yPos == yScroll) {
-                        yScroll--;
-                        renderLevel(width, height, clearRow, tGraphics);
+                    if(redone == 0)
+                        tGraphics.putString(0, height-1, "Already at newest change");
+                } else if(result.getCharacter() == 'u') {
+                    tGraphics.putString(0, height-1, clearRow);
+                    int undone = 0;
+                    while(undone < repeat && curLevel != null && journal.undo(curLevel)) {
+                        showChange(width, height, screen);
+                        undone++;
                     }
-                    yPos--;
-                } else if(result.getKeyType() == KeyType.ArrowDown) {
-                    yPos++;
-                    if(yPos == yScroll+height) {
-                        yScroll++;
-                        renderLevel(width, height, clearRow, tGraphics);
+                    if(undone == 0)
+                        tGraphics.putString(0, height-1, "Already at oldest change");
+                } else if(result.getCharacter() == 'x') {
+                    tGraphics.putString(0, height-1, clearRow);
+                    int x = Math.floorDiv(xPos, 2);
+                    if(curLevel == null || !curLevel.getLayer(layer).contains(x, yPos)) {
+                        tGraphics.putString(0, height-1, "Nothing to clear here");
+                    } else {
+                        LevelGrid tiles = curLevel.getLayer(layer);
+                        journal.beginStep(layer);
+                        tiles.fill(x, yPos, (int) Math.min(x + (long) repeat - 1, tiles.getWidth() - 1), yPos, (byte) 0, recordChange);
+                        countChange();
                     }
-                } else if(result.getKeyType() != KeyType.Character) {
-                    // Do nothing
+                } else if(result.getCharacter() == 'v') { // Also Ctrl-V
+                    tGraphics.putString(0, height-1, clearRow);
+                    if(curLevel != null) {
+                        setZoom(0, screen);
+                        mode = 3; // Visual Block Mode
+                        anchorX = Math.floorDiv(xPos, 2);
+                        anchorY = yPos;
+                        renderer.setSelection(anchorX, anchorY, anchorX, anchorY);
+                        tGraphics.putString(0, height-1, "-- VISUAL BLOCK --");
+                    } else {
+                        tGraphics.putString(0, height-1, "Can't select: no active file!");
+                    }
+                } else if(result.getCharacter() == 'X') {
+                    tGraphics.putString(0, height-1, clearRow);
+                    Entity e = curLevel == null ? null : curLevel.getEntities().at(Math.floorDiv(xPos, 2), yPos);
+                    if(e == null) {
+                        tGraphics.putString(0, height-1, "No sprite or trigger here");
+                    } else {
+                        curLevel.removeEntity(e);
+                        renderer.markDirty(e.getX(), e.getY(), (int) Math.min(Integer.MAX_VALUE, e.getMaxX()), (int) Math.min(Integer.MAX_VALUE, e.getMaxY()));
+                        countChange();
+                        tGraphics.putString(0, height-1, "Deleted " + e);
+                    }
+                } else if(result.getCharacter() == '[' || result.getCharacter() == ']') {
+                    tGraphics.putString(0, height-1, clearRow);
+                    if(curLevel == null) {
+                        tGraphics.putString(0, height-1, "No active file!");
+                    } else {
+                        int step = result.getCharacter() == ']' ? repeat : -repeat;
+                        layer = (int) Math.max(0, Math.min(curLevel.getLayerCount() - 1, (long) layer + step));
+                        tGraphics.putString(0, height-1, describeLayer());
+                    }
+                } else if(result.getCharacter() == 'p') {
+                    tGraphics.putString(0, height-1, clearRow);
+                    if(curLevel == null || clipboard == null)
+                        tGraphics.putString(0, height-1, "Nothing to paste");
+                    else
+                        pasteBlock(Math.floorDiv(xPos, 2), yPos);
+                } else if(result.getCharacter() == 'f') {
+                    tGraphics.putString(0, height-1, clearRow);
+                    int x = Math.floorDiv(xPos, 2);
+                    if(curLevel == null || !curLevel.getLayer(layer).contains(x, yPos)) {
+                        tGraphics.putString(0, height-1, "Nothing to fill here");
+                    } else {
+                        int value = readTileValue("Flood fill with: ", screen, tGraphics);
+                        if(value >= 0) {
+                            journal.beginStep(layer);
+                            long filled = curLevel.getLayer(layer).floodFill(x, yPos, (byte) value, recordChange);
+                            if(filled > 0)
+                                countChange();
+                            tGraphics.putString(0, height-1, "Filled " + filled + " tiles");
+                        }
+                    }
+                } else if(result.getCharacter() == '/') {
+                    tGraphics.putString(0, height-1, clearRow);
+                    int value = readTileValue("/", screen, tGraphics);
+                    if(value == 0) {
+                        tGraphics.putString(0, height-1, "Can't search for empty tiles");
+                    } else if(value > 0) {
+                        searchTile = value;
+                        tGraphics.putString(0, height-1, clearRow);
+                        tGraphics.putString(0, height-1, findNext(true, repeat, width, height, screen));
+                    }
+                } else if(result.getCharacter() == 'n' || result.getCharacter() == 'N') {
+                    tGraphics.putString(0, height-1, clearRow);
+                    if(searchTile < 0)
+                        tGraphics.putString(0, height-1, "No previous search");
+                    else
+                        tGraphics.putString(0, height-1, findNext(result.getCharacter() == 'n', repeat, width, height, screen));
                 } else if(result.getCharacter() == ':') {
                     mode = 1; // Command Mode
                 } else if(result.getCharacter() == 'i') {
-                    if(curLevel != null)
+                    if(curLevel != null) {
+                        setZoom(0, screen);
                         mode = 2; // Insert Mode
-                    else {
+                    } else {
                         tGraphics.putString(0, height-1, "Can't go to insert mode: no active file!");
                     }
                 } else {
                     tGraphics.putString(0, height-1, "Unrecognized command '" + result.getCharacter() + "'");
                 }
+            } else if(mode == 3) { // Visual Block Mode
+                KeyStroke result = readKey(screen, tGraphics, false);
+                int x0 = Math.min(anchorX, Math.floorDiv(xPos, 2)), x1 = Math.max(anchorX, Math.floorDiv(xPos, 2));
+                int y0 = Math.min(anchorY, yPos), y1 = Math.max(anchorY, yPos);
+                int repeat = Math.max(1, prefix);
+                boolean digit = isCountDigit(result, prefix);
+                prefix = digit ? Math.min(prefix*10 + result.getCharacter() - '0', MAX_COUNT) : 0;
+                boolean done = !digit;
+                if(!digit)
+                    tGraphics.putString(0, height-1, clearRow);
+                if(digit) {
+                    // Count for the next movement
+                } else if(moveCursor(movement(result), repeat, width, height, screen)) {
+                    renderer.setSelection(anchorX, anchorY, Math.floorDiv(xPos, 2), yPos);
+                    tGraphics.putString(0, height-1, "-- VISUAL BLOCK -- " + (Math.abs(Math.floorDiv(xPos, 2) - anchorX) + 1) + "x" + (Math.abs(yPos - anchorY) + 1));
+                    done = false;
+                } else if(result.getKeyType() != KeyType.Character) {
+                    // Escape or anything else leaves the mode
+                } else if(result.getCharacter() == 'y' || result.getCharacter() == 'd' || result.getCharacter() == 'x') {
+                    if(yankBlock(x0, y0, x1, y1)) {
+                        if(result.getCharacter() == 'y') {
+                            tGraphics.putString(0, height-1, "Yanked " + clipboard.getWidth() + "x" + clipboard.getHeight() + " block");
+                        } else {
+                            fillBlock(x0, y0, x1, y1, (byte) 0);
+                            tGraphics.putString(0, height-1, "Cut " + clipboard.getWidth() + "x" + clipboard.getHeight() + " block");
+                        }
+                    } else {
+                        tGraphics.putString(0, height-1, "Block is too large to yank");
+                    }
+                } else if(result.getCharacter() == 'r') {
+                    int value = readTileValue("Fill block with: ", screen, tGraphics);
+                    if(value >= 0) {
+                        fillBlock(x0, y0, x1, y1, (byte) value);
+                        tGraphics.putString(0, height-1, clearRow);
+                        tGraphics.putString(0, height-1, "Filled " + (x1 - x0 + 1) + "x" + (y1 - y0 + 1) + " block");
+                    }
+                } else if(result.getCharacter() == 'p') {
+                    if(clipboard == null)
+                        tGraphics.putString(0, height-1, "Nothing to paste");
+                    else
+                        pasteBlock(x0, y0);
+                } else if(result.getCharacter() != 'v') {
+                    tGraphics.putString(0, height-1, "-- VISUAL BLOCK -- y: yank, d: cut, r: fill, p: paste, Esc: leave");
+                    done = false;
+                }
+                if(done) {
+                    renderer.clearSelection();
+                    mode = 0;
+                }
             } else if(mode == 1) { // Command Mode
                 tGraphics.putString(0, height-1, clearRow);
                 tGraphics.putString(0, height-1, ":");
@@ -124,8 +329,8 @@ public class Main {
                 KeyStroke result;
                 StringBuilder commandBuilder = new StringBuilder();
                 do {
-                    screen.refresh();
-                    result = screen.readInput();
+                    refresh(screen);
+                    result = readKey(screen, tGraphics, true);
                     TerminalPosition newPos = screen.getCursorPosition();
                     for(int i = newPos.getColumn(); i < width; i++) {
                         tGraphics.putString(i, height-1, " ");
@@ -151,24 +356,108 @@ public class Main {
                 String command = commandBuilder.toString();
                 if(command.equals("")) {
                     // do nothing
-                } else if(command.equals("i") || command.equals("image")) {
+                } else if(command.equals("i") || command.equals("image") || command.startsWith("i ") || command.startsWith("image ")) {
+                    String[] imageArgs = command.trim().split(" +");
+                    String imageName = imageArgs.length > 1 ? imageArgs[1] : "level.png";
+                    int sheetsX = 1, sheetsY = 1;
+                    if(imageArgs.length > 2) {
+                        String[] sheets = imageArgs[2].split("x");
+                        try {
+                            sheetsX = Integer.parseInt(sheets[0]);
+                            sheetsY = Integer.parseInt(sheets[1]);
+                        } catch(NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                            sheetsX = 0;
+                        }
+                    }
                     if(curLevel == null)
                         tGraphics.putString(0, height-1, "Can't save an image: no active file!");
+                    else if(imageArgs.length > 3 || sheetsX <= 0 || sheetsY <= 0)
+                        tGraphics.putString(0, height-1, "Usage: :image [file] [columns x rows]");
                     else {
                         tGraphics.putString(0, height-1, "Saving...");
-                        screen.refresh();
-                        if(saveImage()) {
+                        refresh(screen);
+                        if(saveImage(imageName, sheetsX, sheetsY)) {
                             tGraphics.putString(0, height-1, "Saved!   ");
-                            screen.refresh();
+                            refresh(screen);
+                        } else {
+                            tGraphics.putString(0, height-1, "Not saved: " + lastError);
+                            refresh(screen);
+                        }
+                    }
+                } else if(command.equals("preview") || command.startsWith("preview ")) {
+                    String arg = command.substring(7).trim();
+                    if(!arg.isEmpty() && !arg.equals("quarters") && !arg.equals("off")) {
+                        tGraphics.putString(0, height-1, "Usage: :preview [quarters|off]");
+                    } else if(arg.equals("off") || arg.isEmpty() && renderer.isPreview()) {
+                        renderer.setPreview(null, false);
+                        tGraphics.putString(0, height-1, "Hex view");
+                    } else {
+                        try {
+                            renderer.setPreview(getTileset(), arg.equals("quarters"));
+                            tGraphics.putString(0, height-1, "Colour preview" + (arg.isEmpty() ? "" : " by quarters"));
+                        } catch(IOException e) {
+                            tGraphics.putString(0, height-1, "Can't load tileset: " + e.getMessage());
+                        }
+                    }
+                } else if(command.equals("layers")) {
+                    if(curLevel == null) {
+                        tGraphics.putString(0, height-1, "No active file!");
+                    } else {
+                        List<String> lines = new ArrayList<>();
+                        for(int i = curLevel.getLayerCount() - 1; i >= 0; i--) {
+                            LevelGrid tiles = curLevel.getLayer(i);
+                            lines.add(String.format("%s %3d %-7s %8d KB", i == layer ? ">" : " ", i,
+                                    curLevel.isVisible(i) ? "shown" : "hidden", tiles.getAllocatedBytes()/1024));
+                        }
+                        showOverlay(lines, screen, tGraphics);
+                        tGraphics.putString(0, height-1, clearRow);
+                    }
+                } else if(command.equals("layer") || command.startsWith("layer ")) {
+                    String arg = command.substring(5).trim();
+                    if(curLevel == null) {
+                        tGraphics.putString(0, height-1, "No active file!");
+                    } else if(arg.isEmpty()) {
+                        tGraphics.putString(0, height-1, describeLayer());
+                    } else if(arg.equals("new")) {
+                        if(curLevel.getLayerCount() == Level.MAX_LAYERS) {
+                            tGraphics.putString(0, height-1, "Can't have more than " + Level.MAX_LAYERS + " layers");
+                        } else {
+                            layer = curLevel.addLayer();
+                            countChange();
+                            tGraphics.putString(0, height-1, describeLayer());
+                        }
+                    } else if(arg.equals("delete")) {
+                        if(curLevel.getLayerCount() == 1) {
+                            tGraphics.putString(0, height-1, "Can't delete the only layer");
+                        } else {
+                            curLevel.removeLayer(layer);
+                            layer = Math.min(layer, curLevel.getLayerCount() - 1);
+                            journal.clear(); // Its steps name layers by number
+                            countChange();
+                            tGraphics.putString(0, height-1, "Layer deleted, undo history cleared. " + describeLayer());
+                        }
+                    } else if(arg.equals("show") || arg.equals("hide")) {
+                        curLevel.setVisible(layer, arg.equals("show"));
+                        tGraphics.putString(0, height-1, describeLayer());
+                    } else {
+                        int number = -1;
+                        try {
+                            number = Integer.parseInt(arg);
+                        } catch(NumberFormatException e) {
+                            // Reported below
+                        }
+                        if(number >= 0 && number < curLevel.getLayerCount()) {
+                            layer = number;
+                            tGraphics.putString(0, height-1, describeLayer());
                         } else {
-                            tGraphics.putString(0, height-1, "Not saved!");
-                            screen.refresh();
+                            tGraphics.putString(0, height-1, "Usage: :layer [number|new|delete|show|hide]");
                         }
                     }
+                    renderer.invalidate();
                 } else if(command.startsWith("l")) {
-                    if(saved) {
+                    if(awaitSave(screen, tGraphics)) {
                         tGraphics.putString(0, height-1, "Loading...");
-                        screen.refresh();
+                        refresh(screen);
                         if(command.length() > 1) {
                             command = command.substring(1);
                             if(command.charAt(0) != ' ')
@@ -179,28 +468,37 @@ public class Main {
                         }
                         if(loadLevel()) {
                             tGraphics.putString(0, height-1, "Loaded!  ");
-                            screen.refresh();
+                            refresh(screen);
+                            Path swap = swapPath(filename);
+                            if(Files.exists(swap))
+                                offerRecovery(swap, screen, tGraphics);
                         } else {
-                            tGraphics.putString(0, height-1, "Load failed! Check logs for explanation.");
-                            screen.refresh();
+                            tGraphics.putString(0, height-1, "Load failed: " + lastError);
+                            refresh(screen);
                         }
                     } else {
                         tGraphics.putString(0, height-1, "Not saved! (Use `:" + command + "!` to override)");
                     }
                 } else if(command.equals("n") || command.equals("new")) {
-                    if(saved) {
+                    if(awaitSave(screen, tGraphics)) {
+                        deleteSwap();
                         saved = false;
-                        curLevel = new ArrayList<>();
+                        curLevel = new Level();
+                        layer = 0;
+                        journal.clear();
                         tGraphics.putString(0, height-1, "New level created!");
                     } else {
                         tGraphics.putString(0, height-1, "Not saved! (Use `:" + command + "!` to override)");
                     }
                 } else if(command.equals("n!") || command.equals("new!")) {
+                    deleteSwap();
                     saved = false;
-                    curLevel = new ArrayList<>();
+                    curLevel = new Level();
+                    layer = 0;
+                    journal.clear();
                     tGraphics.putString(0, height-1, "New level created!");
                 } else if(command.equals("q") || command.equals("quit")) {
-                    if(saved) {
+                    if(awaitSave(screen, tGraphics)) {
                         quit = true;
                     } else {
                         tGraphics.putString(0, height-1, "Not saved! (Use `:" + command + "!` to override)");
@@ -214,8 +512,6 @@ public class Main {
                     if(curLevel == null)
                         tGraphics.putString(0, height-1, "Can't save: no active file!");
                     else {
-                        tGraphics.putString(0, height-1, "Saving...");
-                        screen.refresh();
                         if(command.length() > 1) {
                             command = command.substring(1);
                             if(command.charAt(0) != ' ')
@@ -224,31 +520,106 @@ public class Main {
                                 filename = command.substring(1);
                             }
                         }
-                        if(saveLevel()) {
-                            tGraphics.putString(0, height-1, "Saved!   ");
-                            screen.refresh();
+                        if(filename == null) {
+                            tGraphics.putString(0, height-1, "Can't save: no file name! (Use `:w <file>`)");
                         } else {
-                            tGraphics.putString(0, height-1, "Save failed! Check logs for explanation.");
-                            screen.refresh();
+                            // Written in the background; the result shows up in the status line
+                            writer.submit(curLevel.snapshot(), Paths.get(filename), false, edits);
+                            savingEdits = edits;
+                            tGraphics.putString(0, height-1, "Saving " + filename + "...");
                         }
                     }
+                } else if(command.equals("stats")) {
+                    showOverlay(stats.describe(curLevel), screen, tGraphics);
+                    tGraphics.putString(0, height-1, clearRow);
+                } else if(command.startsWith("sprite ")) {
+                    int type = parseId(command.substring(7).trim());
+                    if(curLevel == null) {
+                        tGraphics.putString(0, height-1, "No active file!");
+                    } else if(type < 0) {
+                        tGraphics.putString(0, height-1, "Usage: :sprite <type>");
+                    } else {
+                        tGraphics.putString(0, height-1, "Added " + placeEntity(Entity.sprite(Math.floorDiv(xPos, 2), yPos, type)));
+                    }
+                } else if(command.startsWith("trigger ")) {
+                    String[] triggerArgs = command.substring(8).trim().split(" +");
+                    String[] size = triggerArgs[0].split("x");
+                    int event = triggerArgs.length == 2 ? parseId(triggerArgs[1]) : -1;
+                    int w = -1, h = -1;
+                    try {
+                        w = Integer.parseInt(size[0]);
+                        h = Integer.parseInt(size[1]);
+                    } catch(NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                        // Reported below
+                    }
+                    if(curLevel == null) {
+                        tGraphics.putString(0, height-1, "No active file!");
+                    } else if(event < 0 || w < 1 || h < 1 || w > 0xFFFF || h > 0xFFFF) {
+                        tGraphics.putString(0, height-1, "Usage: :trigger <width>x<height> <event>");
+                    } else {
+                        tGraphics.putString(0, height-1, "Added " + placeEntity(Entity.trigger(Math.floorDiv(xPos, 2), yPos, w, h, event)));
+                    }
+                } else if(command.equals("entities")) {
+                    if(curLevel == null) {
+                        tGraphics.putString(0, height-1, "No active file!");
+                    } else {
+                        EntityIndex entities = curLevel.getEntities();
+                        Entity e = entities.at(Math.floorDiv(xPos, 2), yPos);
+                        tGraphics.putString(0, height-1, entities.getSprites().size() + " sprites, " + entities.getTriggers().size() + " triggers"
+                                + (e == null ? "" : "; here: " + e));
+                    }
+                } else if(command.startsWith("count ")) {
+                    int tile = parseTile(command.substring(6).trim());
+                    if(curLevel == null) {
+                        tGraphics.putString(0, height-1, "No active file!");
+                    } else if(tile < 0) {
+                        tGraphics.putString(0, height-1, "Usage: :count <tile>");
+                    } else {
+                        LevelGrid level = curLevel.getLayer(layer);
+                        long count;
+                        if(tile == 0) { // Empty tiles aren't indexed, but everything else is
+                            count = (long) level.getWidth()*level.getHeight();
+                            for(int i = 1; i < 256; i++)
+                                count -= level.getIndex().count((byte) i);
+                        } else {
+                            count = level.getIndex().count((byte) tile);
+                        }
+                        tGraphics.putString(0, height-1, String.format("%02X: %d tiles", tile, count));
+                    }
+                } else if(command.startsWith("replace ")) {
+                    String[] tiles = command.substring(8).trim().split(" +");
+                    int from = tiles.length == 2 ? parseTile(tiles[0]) : -1;
+                    int to = tiles.length == 2 ? parseTile(tiles[1]) : -1;
+                    if(curLevel == null) {
+                        tGraphics.putString(0, height-1, "No active file!");
+                    } else if(from < 0 || to < 0) {
+                        tGraphics.putString(0, height-1, "Usage: :replace <tile> <new tile>");
+                    } else if(from == 0) {
+                        tGraphics.putString(0, height-1, "Can't replace empty tiles; use visual block fill instead");
+                    } else {
+                        journal.beginStep(layer);
+                        long replaced = curLevel.getLayer(layer).replace((byte) from, (byte) to, recordChange);
+                        if(replaced > 0)
+                            countChange();
+                        tGraphics.putString(0, height-1, "Replaced " + replaced + " tiles");
+                    }
                 } else {
                     tGraphics.putString(0, height-1, "E492: Not an editor command: " + command + "");
                 }
                 mode = 0;
                 screen.setCursorPosition(new TerminalPosition(xPos-xScroll, yPos-yScroll));
             } else if(mode == 2) { // Insert Mode
+                journal.beginStep(layer); // The whole insert session is one undo step
                 tGraphics.putString(0, height-1, clearRow);
-                tGraphics.putString(0, height-1, "-- INSERT --");
-                screen.refresh();
+                tGraphics.putString(0, height-1, "-- INSERT --" + (curLevel.getLayerCount() > 1 ? " layer " + layer : ""));
+                refresh(screen);
                 KeyStroke result;
                 TerminalPosition newPos = new TerminalPosition(xPos-xScroll, yPos-yScroll);
                 do {
-                    result = screen.readInput();
+                    result = readKey(screen, tGraphics, false);
                     if(result.getKeyType() == KeyType.ArrowLeft) {
                         if(xPos <= xScroll) {
                             xScroll-=2;
-                            renderLevel(width, height, clearRow, tGraphics);
                         }
                         xPos--;
                         screen.setCursorPosition(newPos = new TerminalPosition(xPos-xScroll, yPos-yScroll));
@@ -256,13 +627,11 @@ public class Main {
                         xPos++;
                         if(xPos >= xScroll+width) {
                             xScroll+=2;
-                            renderLevel(width, height, clearRow, tGraphics);
                         }
                         screen.setCursorPosition(newPos = new TerminalPosition(xPos-xScroll, yPos-yScroll));
                     } else if(result.getKeyType() == KeyType.ArrowUp) {
                         if(yPos == yScroll) {
                             yScroll--;
-                            renderLevel(width, height, clearRow, tGraphics);
                         }
                         yPos--;
                         screen.setCursorPosition(newPos = new TerminalPosition(xPos-xScroll, yPos-yScroll));
@@ -270,7 +639,6 @@ public class Main {
                         yPos++;
                         if(yPos == yScroll+height) {
                             yScroll++;
-                            renderLevel(width, height, clearRow, tGraphics);
                         }
                         screen.setCursorPosition(newPos = new TerminalPosition(xPos-xScroll, yPos-yScroll));
                     } else if(result.getKeyType() == KeyType.Backspace) {
@@ -280,7 +648,6 @@ public class Main {
                         xPos--;
                         setChar(xPos, yPos, '0');
                         screen.setCursorPosition(newPos = new TerminalPosition(xPos-xScroll, yPos-yScroll));
-                        renderLevel(width, height, clearRow, tGraphics);
                         saved = false;
                     } else if(result.getKeyType() == KeyType.Escape) {
                         tGraphics.putString(0, height-1, clearRow);
@@ -290,7 +657,6 @@ public class Main {
                         yPos++;
                         if(yPos == yScroll+height) {
                             yScroll++;
-                            renderLevel(width, height, clearRow, tGraphics);
                         }
                         screen.setCursorPosition(newPos = new TerminalPosition(xPos-xScroll, yPos-yScroll));
                     } else if(result.getKeyType() != KeyType.Character) {
@@ -304,90 +670,581 @@ public class Main {
                         } else
                             screen.setCursorPosition(newPos = newPos.withRelativeColumn(1));
                         saved = false;
-                        renderLevel(width, height, clearRow, tGraphics);
                     }
-                    screen.refresh();
+                    if(!keyWaiting(screen)) {
+                        renderLevel(width, height, screen, tGraphics);
+                        refresh(screen);
+                    }
                 } while(result.getKeyType() != KeyType.Escape);
                 mode = 0;
             }
         }
 
+        tGraphics.putString(0, termHeight(tGraphics)-1, "Finishing writes...");
+        refresh(screen);
+        try {
+            writer.shutdown();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for(BackgroundWriter.Result result = writer.poll(); result != null; result = writer.poll()) {
+            if(result.swap && !result.path.equals(swapFile))
+                Files.deleteIfExists(result.path);
+        }
+        deleteSwap();
+        
+        String statsFile = System.getProperty("levim.statsCsv");
+        if(statsFile != null)
+            stats.writeCsv(Paths.get(statsFile), curLevel);
+        
         screen.stopScreen();
         screen.close();
     }
     
-    public static boolean saveImage() {
+    private static int termHeight(TextGraphics tGraphics) {
+        return tGraphics.getSize().getRows();
+    }
+    
+    /** Waits for a key while collecting finished saves, writing the swap file when due and showing save progress. */
+    private static KeyStroke readKey(Screen screen, TextGraphics tGraphics, boolean commandLine) throws IOException {
+        if(!typedAhead.isEmpty())
+            return typedAhead.poll();
+        long start = System.nanoTime();
+        while(true) {
+            KeyStroke key = input.poll();
+            if(key == null) {
+                boolean changed = false;
+                if(!commandLine) // Don't scribble over a command being typed
+                    changed = collectWrites(tGraphics);
+                if(curLevel != null && !saved && edits != swapEdits && !writer.isBusy()
+                        && (edits - swapEdits >= swapEditCount || System.currentTimeMillis() - lastEditTime >= swapDelay)) {
+                    Path swap = swapPath(filename);
+                    if(swapFile != null && !swapFile.equals(swap))
+                        deleteSwap();
+                    swapFile = swap;
+                    swapEdits = edits;
+                    writer.submit(curLevel.snapshot(), swap, true, edits);
+                }
+                String progress = writer.getProgress();
+                if(!progress.equals(shownProgress)) {
+                    int width = tGraphics.getSize().getColumns();
+                    int length = Math.min(width, Math.max(progress.length(), shownProgress.length()));
+                    StringBuilder padded = new StringBuilder();
+                    for(int i = progress.length(); i < length; i++)
+                        padded.append(' ');
+                    padded.append(progress);
+                    tGraphics.putString(width - length, termHeight(tGraphics)-1, padded.substring(0, length));
+                    shownProgress = progress;
+                    changed = true;
+                }
+                if(changed)
+                    refresh(screen);
+                // Sleep until a key comes in, the writer has news or the swap file is due
+                try {
+                    if(curLevel != null && !saved && edits != swapEdits && !writer.isBusy())
+                        key = input.poll(Math.max(1, lastEditTime + swapDelay - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                    else
+                        key = input.take();
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for a key");
+                }
+            }
+            if(key != null && key != WAKE_UP) {
+                long now = System.nanoTime();
+                if(keyTime < 0)
+                    keyTime = now;
+                stats.key();
+                stats.record(EditorStats.Phase.INPUT_WAIT, now - start);
+                return key;
+            }
+        }
+    }
+    
+    /** Reads keys on a thread of their own, so the editor can wait for them and for the writer at once. */
+    private static void startInputThread(Screen screen) {
+        Thread thread = new Thread(() -> {
+            try {
+                KeyStroke key;
+                do {
+                    key = screen.readInput();
+                    input.add(key);
+                } while(key.getKeyType() != KeyType.EOF);
+            } catch(IOException e) {
+                input.add(new KeyStroke(KeyType.EOF));
+            }
+        }, "LeVIm input");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /** Waits for the next key, without handling saves in the meantime. */
+    private static KeyStroke takeKey() throws IOException {
         try {
-            int width = curLevel.size() * tileSize;
-            
-            int height = 0;
-            for(int i = 0; i < curLevel.size(); i++) {
-                int curHeight = curLevel.get(i).size();
-                if(curHeight > height)
-                    height = curHeight;
+            KeyStroke key;
+            do {
+                key = input.take();
+            } while(key == WAKE_UP);
+            return key;
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a key");
+        }
+    }
+    
+    /**
+     * Returns true if a key has been typed that hasn't been handled yet, without
+     * waiting. The key is kept for the next {@link #readKey}.
+     */
+    private static boolean keyWaiting(Screen screen) throws IOException {
+        if(typedAhead.isEmpty()) {
+            KeyStroke key = input.poll();
+            while(key == WAKE_UP) // readKey collects the writer's results before it next waits
+                key = input.poll();
+            if(key == null)
+                return false;
+            if(keyTime < 0)
+                keyTime = System.nanoTime();
+            stats.key();
+            typedAhead.add(key);
+        }
+        return true;
+    }
+    
+    /** Handles saves the background writer has finished. Returns true if the status line changed. */
+    private static boolean collectWrites(TextGraphics tGraphics) throws IOException {
+        boolean changed = false;
+        int height = termHeight(tGraphics);
+        for(BackgroundWriter.Result result = writer.poll(); result != null; result = writer.poll()) {
+            if(curLevel != null)
+                curLevel.adoptChunkHashes(result.snapshot); // Only where the chunks are still the same
+            if(result.error == null)
+                stats.fileOperation(result.swap ? EditorStats.Phase.SWAP : EditorStats.Phase.SAVE, result.path, result.bytes, result.nanos);
+            if(result.swap) {
+                if(!result.path.equals(swapFile) || saved) { // Outdated by a real save or another level
+                    Files.deleteIfExists(result.path);
+                } else if(result.error != null) {
+                    tGraphics.putString(0, height-1, "Swap file not written: " + result.error.getMessage());
+                    changed = true;
+                }
+                continue;
             }
-            height *= tileSize;
-            
-            BufferedImage output = new BufferedImage(width, height, BufferedImage.TYPE_4BYTE_ABGR);
-            Graphics2D graphics = output.createGraphics();
-            graphics.fillRect(0, 0, width, height);
-            
-            for(int i = 0; i < curLevel.size(); i++)
-                for(int j = 0; j < curLevel.get(i).size(); j++)
-                    graphics.drawImage(tiles[curLevel.get(i).get(j)], i*tileSize, j*tileSize, tileSize, tileSize, null);
-            
-            ImageIO.write(output, "PNG", new File("level.png"));
-            
+            if(result.error != null) {
+                tGraphics.putString(0, height-1, "Save failed: " + result.error.getMessage());
+            } else {
+                if(result.generation == edits) {
+                    saved = true;
+                    deleteSwap();
+                }
+                tGraphics.putString(0, height-1, "Saved " + result.path + "!");
+            }
+            changed = true;
+        }
+        return changed;
+    }
+    
+    /**
+     * Returns whether the level is saved, first waiting for a :w of the level as
+     * it is now if that is still being written.
+     */
+    private static boolean awaitSave(Screen screen, TextGraphics tGraphics) throws IOException {
+        if(!saved && savingEdits == edits && writer.isBusy()) {
+            tGraphics.putString(0, termHeight(tGraphics)-1, "Waiting for the save to finish...");
+            refresh(screen);
+            try {
+                writer.awaitIdle();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a save");
+            }
+            collectWrites(tGraphics);
+        }
+        return saved;
+    }
+    
+    static Path swapPath(String name) {
+        Path path = Paths.get(name == null ? "unnamed.lvl" : name);
+        return path.resolveSibling("." + path.getFileName() + ".swp");
+    }
+    
+    private static void deleteSwap() throws IOException {
+        if(swapFile != null) {
+            Files.deleteIfExists(swapFile);
+            swapFile = null;
+        }
+    }
+    
+    /** Asks whether to recover the level in a leftover swap file. Returns true if it was loaded. */
+    private static boolean offerRecovery(Path swap, Screen screen, TextGraphics tGraphics) throws IOException {
+        if(!isLevelFile(swap)) // Someone else's swap file, vim's for example
+            return false;
+        String swapName = swap.getFileName().toString();
+        String original = swap.resolveSibling(swapName.substring(1, swapName.length() - 4)).toString();
+        int height = termHeight(tGraphics);
+        tGraphics.putString(0, height-1, "Found swap file for " + original + ": (R)ecover, (D)elete, (I)gnore?");
+        refresh(screen);
+        while(true) {
+            KeyStroke key = takeKey();
+            char choice = key.getKeyType() == KeyType.Character ? Character.toLowerCase(key.getCharacter()) : 0;
+            if(key.getKeyType() == KeyType.Escape)
+                choice = 'i';
+            if(choice != 'r' && choice != 'd' && choice != 'i')
+                continue;
+            StringBuilder clear = new StringBuilder();
+            for(int i = 0; i < tGraphics.getSize().getColumns(); i++)
+                clear.append(' ');
+            tGraphics.putString(0, height-1, clear.toString());
+            if(choice == 'd') {
+                Files.deleteIfExists(swap);
+            } else if(choice == 'r') {
+                try {
+                    curLevel = LevelReader.read(swap);
+                    layer = 0;
+                } catch(IOException e) {
+                    e.printStackTrace();
+                    tGraphics.putString(0, height-1, "Recovery failed: " + e.getMessage());
+                    return false;
+                }
+                filename = original;
+                journal.clear();
+                swapFile = swap;
+                saved = false;
+                swapEdits = ++edits;
+                tGraphics.putString(0, height-1, "Recovered " + original + "; use :w to keep it");
+                return true;
+            }
+            return false;
+        }
+    }
+    
+    private static boolean isLevelFile(Path path) {
+        byte[] magic = new byte[LevelReader.MAGIC.length];
+        try(InputStream in = Files.newInputStream(path)) {
+            return in.read(magic) == magic.length && Arrays.equals(magic, LevelReader.MAGIC);
+        } catch(IOException e) {
+            return false;
+        }
+    }
+    
+    /** Waits for the tileset if it is still loading; a failed load is retried on the next call. */
+    private static Tileset getTileset() throws IOException {
+        if(tileset == null)
+            tileset = Tileset.loadInBackground(Paths.get(Tileset.DEFAULT_PATH));
+        try {
+            return tileset.get();
+        } catch(ExecutionException e) {
+            tileset = null;
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException("Can't load tileset", cause);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading tileset");
+        }
+    }
+    
+    public static boolean saveImage(String imageName, int sheetsX, int sheetsY) {
+        try {
+            long start = System.nanoTime();
+            long bytes = new ImageExporter(getTileset().getCache(), ForkJoinPool.commonPool()).export(curLevel, Paths.get(imageName), sheetsX, sheetsY);
+            stats.fileOperation(EditorStats.Phase.EXPORT, Paths.get(imageName), bytes, System.nanoTime() - start);
             return true;
         } catch(Exception e) {
             e.printStackTrace();
+            lastError = e.getMessage();
             return false;
         }
     }
 
-    public static void renderLevel(int width, int height, String clearRow, TextGraphics tGraphics) {
-        // Clear level area
-        for(int i = 0; i < height-1; i++) {
-            tGraphics.putString(0, i, clearRow);
+    /** Shows on the status line how long the first frame took, for -Dlevim.showStartup=true. */
+    private static void showStartupTime(long startTime, int height, Screen screen, TextGraphics tGraphics) throws IOException {
+        long mainMillis = (System.nanoTime() - startTime) / 1000000;
+        long jvmMillis = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+        tGraphics.putString(0, height-1, "First frame after " + mainMillis + " ms (" + jvmMillis + " ms since JVM start)");
+        refresh(screen);
+    }
+
+    private static String describeLayer() {
+        return "Layer " + layer + " of 0-" + (curLevel.getLayerCount() - 1) + (curLevel.isVisible(layer) ? "" : " (hidden)");
+    }
+    
+    /** Moves the cursor to the layer and tiles changed by an undo or redo and schedules them for redrawing. */
+    private static void showChange(int width, int height, Screen screen) {
+        if(journal.getCursorLayer() < curLevel.getLayerCount())
+            layer = journal.getCursorLayer();
+        renderer.markDirty(journal.getMinX(), journal.getMinY(), journal.getMaxX(), journal.getMaxY());
+        jumpTo(journal.getCursorX(), journal.getCursorY(), width, height, screen);
+        countChange();
+    }
+    
+    /** Puts the cursor on tile (x, y), scrolling to center it if it is off screen. */
+    private static void jumpTo(int x, int y, int width, int height, Screen screen) {
+        xPos = x*2;
+        yPos = y;
+        if(xPos < xScroll || xPos >= xScroll+width)
+            xScroll = (xPos - width/2) & ~1;
+        if(yPos < yScroll || yPos >= yScroll+height-1)
+            yScroll = yPos - (height-1)/2;
+        screen.setCursorPosition(new TerminalPosition(xPos-xScroll, yPos-yScroll));
+    }
+    
+    /** Jumps to the {@code count}th next or previous tile matching the last search. Returns the text for the status line. */
+    private static String findNext(boolean forward, int count, int width, int height, Screen screen) {
+        String pattern = String.format("%02X", searchTile);
+        if(curLevel == null)
+            return "No active file!";
+        TileIndex index = curLevel.getLayer(layer).getIndex();
+        long matches = index.count((byte) searchTile);
+        if(matches == 0)
+            return "Pattern not found: " + pattern;
+        int x = Math.floorDiv(xPos, 2), y = yPos;
+        for(long i = (count - 1) % matches; i >= 0; i--) { // Searching wraps, so going round more often changes nothing
+            long found = index.find((byte) searchTile, x, y, forward);
+            x = (int) (found >> 32);
+            y = (int) found;
         }
-        if(curLevel != null) {
-            for(int i = 0; i < width; i+=2) {
-                for(int j = 0; j < height-1; j++) {
-                    int xPosition = (xScroll+i)/2;
-                    int yPosition = yScroll+j;
-                    if(xPosition < 0 || yPosition < 0 || xPosition >= curLevel.size() || yPosition >= curLevel.get(xPosition).size())
-                        continue;
-                    byte value = curLevel.get(xPosition).get(yPosition);
-                    if(value == 0) continue;
-                    tGraphics.putString(i, j, String.format("%02X", value));
-                }
+        jumpTo(x, y, width, height, screen);
+        return (forward ? "/" : "?") + pattern + " (" + matches + " matches)";
+    }
+    
+    /** Parses a sprite type or trigger event of up to four hex digits. Returns -1 if it isn't one. */
+    private static int parseId(String text) {
+        if(text.isEmpty() || text.length() > 4)
+            return -1;
+        try {
+            return Integer.parseInt(text, 16);
+        } catch(NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    /** Parses a tile ID of one or two hex digits. Returns -1 if it isn't one. */
+    private static int parseTile(String text) {
+        if(text.isEmpty() || text.length() > 2)
+            return -1;
+        try {
+            return Integer.parseInt(text, 16);
+        } catch(NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** Returns true if {@code key} continues or starts a count; a leading 0 doesn't. */
+    private static boolean isCountDigit(KeyStroke key, int count) {
+        return key.getKeyType() == KeyType.Character && !key.isCtrlDown()
+                && key.getCharacter() >= (count > 0 ? '0' : '1') && key.getCharacter() <= '9';
+    }
+    
+    /** Maps h, j, k and l to the arrow keys they stand for. Other keys are returned as they are. */
+    private static KeyType movement(KeyStroke key) {
+        if(key.getKeyType() != KeyType.Character || key.isCtrlDown())
+            return key.getKeyType();
+        switch(key.getCharacter()) {
+            case 'h': return KeyType.ArrowLeft;
+            case 'j': return KeyType.ArrowDown;
+            case 'k': return KeyType.ArrowUp;
+            case 'l': return KeyType.ArrowRight;
+            default: return KeyType.Character;
+        }
+    }
+    
+    /** Handles the arrow keys shared by quick and visual mode, moving {@code count} times. Returns false for any other key. */
+    private static boolean moveCursor(KeyType key, long count, int width, int height, Screen screen) {
+        if(key != KeyType.ArrowLeft && key != KeyType.ArrowRight && key != KeyType.ArrowUp && key != KeyType.ArrowDown)
+            return false;
+        // Move the whole way at once, scrolling as far as stepping would have
+        if(key == KeyType.ArrowLeft) {
+            xPos = clampPosition(xPos - count);
+            if(xPos < xScroll)
+                xScroll -= (xScroll - xPos + 1) / 2 * 2;
+        } else if(key == KeyType.ArrowRight) {
+            xPos = clampPosition(xPos + count);
+            if(xPos >= xScroll+width)
+                xScroll += (xPos - xScroll - width + 2) / 2 * 2;
+        } else if(key == KeyType.ArrowUp) {
+            yPos = clampPosition(yPos - count);
+            if(yPos < yScroll)
+                yScroll = yPos;
+        } else {
+            yPos = clampPosition(yPos + count);
+            if(yPos >= yScroll+height)
+                yScroll = yPos - height + 1;
+        }
+        screen.setCursorPosition(new TerminalPosition(xPos-xScroll, yPos-yScroll));
+        return true;
+    }
+    
+    /** Keeps the cursor within half the int range, so nothing derived from it can overflow. */
+    private static int clampPosition(long position) {
+        return (int) Math.max(Integer.MIN_VALUE / 2, Math.min(Integer.MAX_VALUE / 2, position));
+    }
+    
+    /** Reads two hex digits for a tile value, echoing them after {@code prompt}. Returns -1 if cancelled. */
+    private static int readTileValue(String prompt, Screen screen, TextGraphics tGraphics) throws IOException {
+        int height = termHeight(tGraphics);
+        String typed = "";
+        while(true) {
+            tGraphics.putString(0, height-1, prompt + typed + "  ");
+            refresh(screen);
+            KeyStroke key = readKey(screen, tGraphics, true);
+            if(key.getKeyType() != KeyType.Character || Character.digit(key.getCharacter(), 16) < 0) {
+                tGraphics.putString(0, height-1, prompt + "cancelled");
+                return -1;
             }
+            typed += Character.toUpperCase(key.getCharacter());
+            if(typed.length() == 2)
+                return Integer.parseInt(typed, 16);
         }
     }
     
-    public static void setChar(int x, int y, char value) {
-        int xIndex = x/2;
-        while(xIndex < 0) {
-            xIndex++;
-            xScroll += 2;
-            xPos += 2;
-            curLevel.add(0, new ArrayList<>());
+    /** Copies the inclusive rectangle to the clipboard. Returns false if it is too large. */
+    private static boolean yankBlock(int x0, int y0, int x1, int y1) {
+        try {
+            clipboard = TileBlock.copy(curLevel.getLayer(layer), x0, y0, x1 - x0 + 1, y1 - y0 + 1);
+            return true;
+        } catch(IllegalArgumentException | OutOfMemoryError e) {
+            return false;
         }
-        while(curLevel.size() <= xIndex) {
-            curLevel.add(new ArrayList<>());
+    }
+    
+    /** Sets every tile of the inclusive rectangle to {@code value} as one undo step, growing the level to fit. */
+    private static void fillBlock(int x0, int y0, int x1, int y1, byte value) {
+        journal.beginStep(layer);
+        long grown = growLevel(x0, y0);
+        x0 += (int) (grown >>> 32);
+        x1 += (int) (grown >>> 32);
+        y0 += (int) grown;
+        y1 += (int) grown;
+        growLevel(x1, y1);
+        curLevel.getLayer(layer).fill(x0, y0, x1, y1, value, recordChange);
+        countChange();
+    }
+    
+    /** Writes the clipboard with its top left corner at tile (x, y) as one undo step, growing the level to fit. */
+    private static void pasteBlock(int x, int y) {
+        journal.beginStep(layer);
+        long grown = growLevel(x, y);
+        x += (int) (grown >>> 32);
+        y += (int) grown;
+        growLevel(x + clipboard.getWidth() - 1, y + clipboard.getHeight() - 1);
+        clipboard.paste(curLevel.getLayer(layer), x, y, recordChange);
+        countChange();
+    }
+    
+    /** Adds {@code e} to the level, growing the level to cover it. Returns the entity as placed. */
+    private static Entity placeEntity(Entity e) {
+        long grown = growLevel(e.getX(), e.getY());
+        e = e.moved((int) (grown >>> 32), (int) grown);
+        growLevel((int) Math.min(Integer.MAX_VALUE, e.getMaxX()), (int) Math.min(Integer.MAX_VALUE, e.getMaxY()));
+        curLevel.addEntity(e);
+        renderer.markDirty(e.getX(), e.getY(), (int) e.getMaxX(), (int) e.getMaxY());
+        countChange();
+        return e;
+    }
+    
+    /**
+     * Grows every layer so that it contains tile (x, y), shifting the view, cursor,
+     * selection anchor and undo journal along if it grew left or up. Returns what
+     * {@link LevelGrid#ensureContains} returned.
+     */
+    private static long growLevel(int x, int y) {
+        long grown = curLevel.ensureContains(x, y);
+        int colsAdded = (int) (grown >>> 32);
+        int rowsAdded = (int) grown;
+        journal.shift(colsAdded, rowsAdded);
+        xScroll += colsAdded*2;
+        xPos += colsAdded*2;
+        anchorX += colsAdded;
+        yScroll += rowsAdded;
+        yPos += rowsAdded;
+        anchorY += rowsAdded;
+        zoomX += colsAdded;
+        zoomY += rowsAdded;
+        return grown;
+    }
+    
+    private static void countChange() {
+        saved = false;
+        edits++;
+        lastEditTime = System.currentTimeMillis();
+    }
+    
+    public static int renderLevel(int width, int height, Screen screen, TextGraphics tGraphics) {
+        long start = System.nanoTime();
+        int cells;
+        if(zoom > 0 && curLevel != null) {
+            followCursorZoomed(width, height, screen);
+            cells = renderer.renderZoomed(tGraphics, curLevel, zoom, zoomX, zoomY, width, height);
+        } else {
+            cells = renderer.render(screen, tGraphics, curLevel, layer, xScroll, yScroll, width, height);
         }
-        ArrayList<Byte> curRow = curLevel.get(xIndex);
-        
-        int yIndex = y;
-        while(yIndex < 0) {
-            yIndex++;
-            yScroll++;
-            yPos++;
-            curRow.add(0, (byte) 0);
+        renderNanos += System.nanoTime() - start;
+        renderedCells += cells;
+        return cells;
+    }
+    
+    /** Switches between the hex view (0) and the zoomed out views, keeping the cursor where it is. */
+    private static void setZoom(int newZoom, Screen screen) {
+        zoom = newZoom;
+        if(zoom == 0)
+            screen.setCursorPosition(new TerminalPosition(xPos-xScroll, yPos-yScroll));
+    }
+    
+    /** Scrolls the zoomed view if the cursor has left it, and puts the terminal cursor on the block holding it. */
+    private static void followCursorZoomed(int width, int height, Screen screen) {
+        LevelGrid tiles = curLevel.getTiles();
+        long size = 1L << zoom;
+        int rows = Math.max(1, height - 1);
+        int x = Math.floorDiv(xPos, 2);
+        long col = Math.floorDiv(x - (long) zoomX, size), row = Math.floorDiv(yPos - (long) zoomY, 2*size);
+        if(col < 0 || col >= width || row < 0 || row >= rows
+                || zoomX != tiles.blockStartX(zoom, zoomX) || zoomY != tiles.blockStartY(zoom, zoomY)) {
+            // Centre the cursor, keeping the view on block boundaries
+            zoomX = tiles.blockStartX(zoom, (int) Math.max(Integer.MIN_VALUE, x - width/2*size));
+            zoomY = tiles.blockStartY(zoom, (int) Math.max(Integer.MIN_VALUE, yPos - rows/2*2*size));
+            col = Math.floorDiv(x - (long) zoomX, size);
+            row = Math.floorDiv(yPos - (long) zoomY, 2*size);
         }
-        while(curRow.size() <= yIndex) {
-            curRow.add((byte) 0);
+        screen.setCursorPosition(new TerminalPosition((int) col, (int) row));
+    }
+    
+    /** Refreshes the screen, counting it as the frame for the last key read and any rendering since the last one. */
+    private static void refresh(Screen screen) throws IOException {
+        long start = System.nanoTime();
+        screen.refresh();
+        long end = System.nanoTime();
+        stats.frame(keyTime < 0 ? -1 : end - keyTime, renderNanos, end - start, renderedCells);
+        keyTime = -1;
+        renderNanos = 0;
+        renderedCells = 0;
+    }
+    
+    /** Shows {@code lines} over the level area until a key is pressed. */
+    private static void showOverlay(List<String> lines, Screen screen, TextGraphics tGraphics) throws IOException {
+        int width = tGraphics.getSize().getColumns();
+        int height = termHeight(tGraphics);
+        lines = new ArrayList<>(lines);
+        lines.add("");
+        for(int i = 0; i < height-1; i++) {
+            StringBuilder line = new StringBuilder(i < lines.size() ? lines.get(i) : "");
+            while(line.length() < width)
+                line.append(' ');
+            tGraphics.putString(0, i, line.substring(0, width));
         }
+        tGraphics.putString(0, height-1, "Press any key to continue");
+        refresh(screen);
+        readKey(screen, tGraphics, true);
+        renderer.invalidate();
+    }
+    
+    public static void setChar(int x, int y, char value) {
+        int xIndex = Math.floorDiv(x, 2);
+        int yIndex = y;
+        long grown = growLevel(xIndex, yIndex);
+        LevelGrid level = curLevel.getLayer(layer);
+        xIndex += (int) (grown >>> 32);
+        yIndex += (int) grown;
+        edits++;
+        lastEditTime = System.currentTimeMillis();
         
         byte trueValue;
         if(value >= '0' && value <= '9') {
@@ -400,77 +1257,49 @@ public class Main {
             trueValue = 0;
         }
         
-        byte prevValue = curRow.get(yIndex);
-        if(x % 2 == 0) {
+        byte prevValue = level.get(xIndex, yIndex);
+        if((x & 1) == 0) {
             prevValue &= 0x0F;
             prevValue |= trueValue << 4;
         } else {
             prevValue &= 0xF0;
             prevValue |= trueValue;
         }
-        curRow.set(yIndex, prevValue);
+        journal.record(xIndex, yIndex, level.get(xIndex, yIndex), prevValue);
+        level.set(xIndex, yIndex, prevValue);
+        renderer.markDirty(xIndex, yIndex);
     }
     
-    public static byte[] toByteArray(InputStream in) throws IOException {
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
-        
-        byte[] buffer = new byte[1024];
-        int len;
-        
-        // read bytes from the input stream and store them in buffer
-        while ((len = in.read(buffer)) != -1) {
-            // write bytes from the buffer into output stream
-            os.write(buffer, 0, len);
-        }
-        
-        return os.toByteArray();
+    /** Starts editing {@code level} as file {@code name}, without touching the disk. Used by the benchmarks. */
+    static void setLevel(Level level, String name) {
+        curLevel = level;
+        layer = 0;
+        filename = name;
+        journal.clear();
+    }
+    
+    static Level getLevel() {
+        return curLevel;
     }
     
     public static boolean loadLevel() {
         try {
             if(filename == null) {
+                lastError = "no file name";
                 return false;
             }
-            FileInputStream inFile = new FileInputStream(filename);
-            byte[] in = toByteArray(inFile);
-            
-            if(in[0] != 0x11 || in[1] != 0x54 || in[2] != 0x23 || in[3] != (byte) 0xF4) // Wrong magic
-                return false;
-            
-            if(in[4] > 0x00 || in[5] > 0x00) // File is too new
-                return false;
-            
-            int i = 6;
-            int numLayers = in[i++] & 0x00FF;
-            if(numLayers != 1) // Not compatible with the editor
-                return false;
-            
-            ArrayList<ArrayList<Byte>> newLevel = new ArrayList<>();
-            int numCols = ((in[i++] & 0x00FF) << 8) | (in[i++] & 0x00FF);
-            for(int j = 0; j < numCols; j++) {
-                int numCells = in[i++] & 0xFF;
-                ArrayList<Byte> curCol = new ArrayList<>();
-                newLevel.add(curCol);
-                for(int k = 0; k < numCells; k++) {
-                    curCol.add(in[i++]);
-                }
-            }
-            
-            i += 8; // Skip scroll speed, numSprites, and numTriggers
-//            MessageDigest sha = MessageDigest.getInstance("SHA-256"); // Commented out due to hash checking malfunctions
-//            sha.update(in, 0, i);
-//            byte[] sig = sha.digest();
-//            for(int j = 0; j < 32; j++) {
-//                if(sig[j] != in[i+j]) { // Signature mismatch
-//                    return false;
-//                }
-//            }
-            
-            curLevel = newLevel;
-            
+            long start = System.nanoTime();
+            Path path = Paths.get(filename);
+            Level level = LevelReader.read(path);
+            stats.fileOperation(EditorStats.Phase.LOAD, path, Files.size(path), System.nanoTime() - start);
+            deleteSwap();
+            curLevel = level;
+            layer = 0;
+            journal.clear();
             return true;
         } catch(Exception e) {
             e.printStackTrace();
+            lastError = e.getMessage();
             return false;
         }
     }
@@ -478,46 +1307,18 @@ public class Main {
     public static boolean saveLevel() {
         try {
             if(filename == null) {
+                lastError = "no file name";
                 return false;
             }
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-
-            // Save curLevel
-            out.write(new byte[] {0x11, 0x54, 0x23, (byte) 0xF4}); // Magic
-            out.write(new byte[] {0x00, 0x00}); // Version
-            
-            out.write(1); // 1 layer
-            int numColumns = curLevel.size();
-            out.write(numColumns >> 8);
-            out.write(numColumns & 0xFF);
-            for(ArrayList<Byte> curRow : curLevel) {
-                out.write(curRow.size());
-                for(Byte cur: curRow) {
-                    out.write(cur);
-                }
-            }
-            out.write(Float.floatToIntBits(1)); // Background scroll speed relative to player
-
-            out.write(new byte[] {0, 0}); // No sprites
-
-            out.write(new byte[] {0, 0}); // No triggers
-            
-            out.close();
-            
-            byte[] data1 = out.toByteArray();
-            
-            MessageDigest sha = MessageDigest.getInstance("SHA-256");
-            byte[] data2 = sha.digest(data1);
-            
-            FileOutputStream fileOut = new FileOutputStream(filename);
-            fileOut.write(data1);
-            fileOut.write(data2);
-            fileOut.close();
-            
+            long start = System.nanoTime();
+            Path path = Paths.get(filename);
+            LevelWriter.write(curLevel, path);
+            stats.fileOperation(EditorStats.Phase.SAVE, path, Files.size(path), System.nanoTime() - start);
             saved = true;
             return true;
         } catch(Exception e) {
             e.printStackTrace();
+            lastError = e.getMessage();
             return false;
         }
     }
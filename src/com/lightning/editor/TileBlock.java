@@ -0,0 +1,44 @@
+package com.lightning.editor;
+
+/**
+ * A rectangle of tiles copied out of a level, stored column by column like the
+ * chunks it came from so that copying in and out is a run of array copies.
+ */
+public class TileBlock {
+    private final int width, height;
+    private final byte[] tiles;
+
+    public TileBlock(int width, int height) {
+        if(width <= 0 || height <= 0 || (long) width*height > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("Bad block size " + width + "x" + height);
+        this.width = width;
+        this.height = height;
+        tiles = new byte[width*height];
+    }
+
+    /** Copies the tiles of the given rectangle; parts outside the level are copied as 0. */
+    public static TileBlock copy(LevelGrid level, int x, int y, int width, int height) {
+        TileBlock block = new TileBlock(width, height);
+        for(int i = 0; i < width; i++)
+            level.getColumn(x + i, y, block.tiles, i*height, height);
+        return block;
+    }
+
+    /** Writes the block into {@code level} with its top left corner at (x, y), which must fit in the level. */
+    public void paste(LevelGrid level, int x, int y, LevelGrid.ChangeListener listener) {
+        for(int i = 0; i < width; i++)
+            level.setColumn(x + i, y, tiles, i*height, height, listener);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public byte get(int x, int y) {
+        return tiles[x*height + y];
+    }
+}
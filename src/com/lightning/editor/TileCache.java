@@ -0,0 +1,82 @@
+package com.lightning.editor;
+
+import java.awt.image.BufferedImage;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The tileset converted once into plain RGB rows, already composited onto the
+ * white image background, so exporting a tile is just array copies.
+ */
+public class TileCache {
+    public static final int BYTES_PER_PIXEL = 3;
+    private static final int FILE_MAGIC = 0x4C544331; // "LTC1"
+
+    private final int tileSize;
+    private final byte[][] pixels; // per tile, RGB row by row
+
+    /** Converts a tileset image holding a 16x16 grid of tiles. */
+    public TileCache(BufferedImage tileset) {
+        tileSize = tileset.getWidth()/16;
+        pixels = new byte[256][];
+        int[] argb = new int[tileSize*tileSize];
+        for(int i = 0; i < pixels.length; i++) {
+            tileset.getRGB(i%16*tileSize, i/16*tileSize, tileSize, tileSize, argb, 0, tileSize);
+            byte[] rgb = pixels[i] = new byte[tileSize*tileSize*BYTES_PER_PIXEL];
+            for(int p = 0, q = 0; p < argb.length; p++) {
+                int alpha = argb[p] >>> 24;
+                rgb[q++] = (byte) blend(argb[p] >> 16 & 0xFF, alpha);
+                rgb[q++] = (byte) blend(argb[p] >> 8 & 0xFF, alpha);
+                rgb[q++] = (byte) blend(argb[p] & 0xFF, alpha);
+            }
+        }
+    }
+
+    private TileCache(int tileSize, byte[][] pixels) {
+        this.tileSize = tileSize;
+        this.pixels = pixels;
+    }
+
+    private static int blend(int channel, int alpha) {
+        return (channel*alpha + 255*(255 - alpha) + 127) / 255;
+    }
+
+    /** Reads a cache written by {@link #write(OutputStream)}. Returns null if the data isn't one. */
+    public static TileCache read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if(data.readInt() != FILE_MAGIC)
+            return null;
+        int tileSize = data.readUnsignedShort();
+        if(tileSize == 0 || tileSize > 1024)
+            return null;
+        byte[][] pixels = new byte[256][];
+        for(int i = 0; i < pixels.length; i++) {
+            pixels[i] = new byte[tileSize*tileSize*BYTES_PER_PIXEL];
+            data.readFully(pixels[i]);
+        }
+        if(data.read() != -1)
+            return null;
+        return new TileCache(tileSize, pixels);
+    }
+
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(FILE_MAGIC);
+        data.writeShort(tileSize);
+        for(byte[] tile : pixels)
+            data.write(tile);
+        data.flush();
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /** Returns the RGB rows of {@code tile}; callers must not modify the array. */
+    public byte[] getPixels(int tile) {
+        return pixels[tile & 0xFF];
+    }
+}
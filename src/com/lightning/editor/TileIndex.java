@@ -0,0 +1,309 @@
+package com.lightning.editor;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Where each non-empty tile ID occurs in a level.
+ *
+ * Positions are split into 64x64 blocks, and every tile ID keeps a sorted map
+ * from block to the set of its positions inside that block: a sorted array
+ * while there are few, a 4096-bit bitmap once there are many. Finding the
+ * next occurrence is a map lookup plus a scan of at most one block, so it
+ * stays O(log n) however large the level is. {@link LevelGrid} keeps the index
+ * up to date as tiles change.
+ *
+ * Search order runs through the level in bands of 64 rows, top band first,
+ * and through each band column by column from the left.
+ */
+public class TileIndex {
+    private static final int BITS = 6;
+    private static final int MASK = (1 << BITS) - 1;
+    private static final int ARRAY_MAX = 256; // Above this an array takes more room than a bitmap
+    private static final int BITMAP_MIN = 128;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final TreeMap<Long, Block>[] blocks = new TreeMap[256];
+    private final long[] counts = new long[256];
+    private int shiftX = 0, shiftY = 0; // Added to stored positions to get current level positions
+
+    /** Indexes every tile of {@code level}, a block at a time. */
+    static TileIndex build(LevelGrid level) {
+        TileIndex index = new TileIndex();
+        long[][] bits = new long[256][];
+        int[] sizes = new int[256];
+        int[] present = new int[256];
+        byte[] column = new byte[1 << BITS];
+        for(int by = 0; by << BITS < level.getHeight(); by++) {
+            int rows = Math.min(1 << BITS, level.getHeight() - (by << BITS));
+            for(int bx = 0; bx << BITS < level.getWidth(); bx++) {
+                int cols = Math.min(1 << BITS, level.getWidth() - (bx << BITS));
+                int tiles = 0;
+                for(int lx = 0; lx < cols; lx++) {
+                    level.getColumn((bx << BITS) + lx, by << BITS, column, 0, rows);
+                    for(int ly = 0; ly < rows; ly++) {
+                        int tile = column[ly] & 0xFF;
+                        if(tile == 0)
+                            continue;
+                        if(sizes[tile]++ == 0) {
+                            present[tiles++] = tile;
+                            if(bits[tile] == null)
+                                bits[tile] = new long[1 << 2*BITS - 6];
+                        }
+                        int offset = lx << BITS | ly;
+                        bits[tile][offset >> 6] |= 1L << offset;
+                    }
+                }
+                long key = key(bx << BITS, by << BITS);
+                for(int i = 0; i < tiles; i++) {
+                    int tile = present[i];
+                    if(index.blocks[tile] == null)
+                        index.blocks[tile] = new TreeMap<>();
+                    index.blocks[tile].put(key, sizes[tile] > ARRAY_MAX ? new BitmapBlock(bits[tile], sizes[tile]) : new ArrayBlock(bits[tile], sizes[tile]));
+                    index.counts[tile] += sizes[tile];
+                    sizes[tile] = 0;
+                    Arrays.fill(bits[tile], 0);
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Must be called when the level grows left or up, so stored positions stay
+     * valid. Returns false if the blocks would no longer line up with the
+     * level's bands of 64 rows and columns, in which case the index has to be
+     * built again instead.
+     */
+    boolean shift(int cols, int rows) {
+        if(((cols | rows) & MASK) != 0)
+            return false;
+        shiftX += cols;
+        shiftY += rows;
+        return true;
+    }
+
+    void changed(int x, int y, byte oldValue, byte newValue) {
+        if(oldValue == newValue)
+            return;
+        x -= shiftX;
+        y -= shiftY;
+        long key = key(x, y);
+        int offset = (x & MASK) << BITS | y & MASK;
+        if(oldValue != 0) {
+            TreeMap<Long, Block> map = blocks[oldValue & 0xFF];
+            Block block = map.get(key);
+            Block result = block.remove(offset);
+            if(result == null)
+                map.remove(key);
+            else if(result != block)
+                map.put(key, result);
+            counts[oldValue & 0xFF]--;
+        }
+        if(newValue != 0) {
+            TreeMap<Long, Block> map = blocks[newValue & 0xFF];
+            if(map == null)
+                map = blocks[newValue & 0xFF] = new TreeMap<>();
+            Block block = map.get(key);
+            Block result = block == null ? new ArrayBlock(offset) : block.add(offset);
+            if(result != block)
+                map.put(key, result);
+            counts[newValue & 0xFF]++;
+        }
+    }
+
+    /** Number of tiles with ID {@code tile}, which must not be 0. */
+    public long count(byte tile) {
+        return counts[tile & 0xFF];
+    }
+
+    /**
+     * Finds the closest tile with ID {@code tile} after (x, y) in search order, or
+     * before it if {@code forward} is false, wrapping around at the ends. Returns
+     * its position packed as {@code (x << 32) | y}, or -1 if there is none.
+     */
+    public long find(byte tile, int x, int y, boolean forward) {
+        TreeMap<Long, Block> map = blocks[tile & 0xFF];
+        if(map == null || map.isEmpty())
+            return -1;
+        x -= shiftX;
+        y -= shiftY;
+        long key = key(x, y);
+        int offset = (x & MASK) << BITS | y & MASK;
+        Block block = map.get(key);
+        int found = -1;
+        if(block != null)
+            found = forward ? block.next(offset + 1) : block.previous(offset - 1);
+        if(found < 0) {
+            Map.Entry<Long, Block> entry = forward ? map.higherEntry(key) : map.lowerEntry(key);
+            if(entry == null) // Wrap around
+                entry = forward ? map.firstEntry() : map.lastEntry();
+            key = entry.getKey();
+            found = forward ? entry.getValue().next(0) : entry.getValue().previous(MASK << BITS | MASK);
+        }
+        return position(key, found);
+    }
+
+    /** Every position of {@code tile}, packed like the result of {@link #find}, in search order. */
+    public long[] positions(byte tile) {
+        long[] positions = new long[(int) counts[tile & 0xFF]];
+        TreeMap<Long, Block> map = blocks[tile & 0xFF];
+        if(map == null)
+            return positions;
+        int n = 0;
+        for(Map.Entry<Long, Block> entry : map.entrySet()) {
+            Block block = entry.getValue();
+            for(int offset = block.next(0); offset >= 0; offset = block.next(offset + 1))
+                positions[n++] = position(entry.getKey(), offset);
+        }
+        return positions;
+    }
+
+    private static long key(int x, int y) {
+        // Signed block row, then block column with the sign bit flipped so it sorts as unsigned
+        return (long) (y >> BITS) << 32 | ((x >> BITS) ^ Integer.MIN_VALUE) & 0xFFFFFFFFL;
+    }
+
+    private long position(long key, int offset) {
+        int x = ((int) key ^ Integer.MIN_VALUE) << BITS | offset >> BITS;
+        int y = (int) (key >> 32) << BITS | offset & MASK;
+        return (long) (x + shiftX) << 32 | (y + shiftY) & 0xFFFFFFFFL;
+    }
+
+    /** The positions of one tile ID inside one block, as offsets (x << 6) | y. */
+    private interface Block {
+        /** Returns the block to keep in the map, which may be a new one. */
+        Block add(int offset);
+        /** Returns the block to keep in the map, or null if it became empty. */
+        Block remove(int offset);
+        /** Smallest offset that is at least {@code from}, or -1. */
+        int next(int from);
+        /** Largest offset that is at most {@code from}, or -1. */
+        int previous(int from);
+    }
+
+    private static class ArrayBlock implements Block {
+        private short[] offsets;
+        private int size;
+
+        ArrayBlock(int offset) {
+            offsets = new short[4];
+            offsets[0] = (short) offset;
+            size = 1;
+        }
+
+        ArrayBlock(long[] bits, int size) {
+            offsets = new short[size + 4];
+            for(int offset = 0; offset < bits.length << 6; offset++)
+                if((bits[offset >> 6] & 1L << offset) != 0)
+                    offsets[this.size++] = (short) offset;
+        }
+
+        public Block add(int offset) {
+            int i = Arrays.binarySearch(offsets, 0, size, (short) offset);
+            if(i >= 0)
+                return this;
+            if(size == ARRAY_MAX) {
+                BitmapBlock bitmap = new BitmapBlock(this);
+                return bitmap.add(offset);
+            }
+            i = -i - 1;
+            if(size == offsets.length)
+                offsets = Arrays.copyOf(offsets, Math.min(ARRAY_MAX, size*2));
+            System.arraycopy(offsets, i, offsets, i + 1, size - i);
+            offsets[i] = (short) offset;
+            size++;
+            return this;
+        }
+
+        public Block remove(int offset) {
+            int i = Arrays.binarySearch(offsets, 0, size, (short) offset);
+            if(i < 0)
+                return this;
+            System.arraycopy(offsets, i + 1, offsets, i, size - i - 1);
+            size--;
+            return size == 0 ? null : this;
+        }
+
+        public int next(int from) {
+            int i = Arrays.binarySearch(offsets, 0, size, (short) Math.max(0, from));
+            if(i < 0)
+                i = -i - 1;
+            return i < size ? offsets[i] : -1;
+        }
+
+        public int previous(int from) {
+            if(from < 0)
+                return -1;
+            int i = Arrays.binarySearch(offsets, 0, size, (short) from);
+            if(i < 0)
+                i = -i - 2;
+            return i >= 0 ? offsets[i] : -1;
+        }
+    }
+
+    private static class BitmapBlock implements Block {
+        private final long[] bits = new long[1 << 2*BITS - 6];
+        private int size;
+
+        BitmapBlock(long[] bits, int size) {
+            System.arraycopy(bits, 0, this.bits, 0, this.bits.length);
+            this.size = size;
+        }
+
+        BitmapBlock(ArrayBlock array) {
+            for(int i = 0; i < array.size; i++)
+                bits[array.offsets[i] >> 6] |= 1L << array.offsets[i];
+            size = array.size;
+        }
+
+        public Block add(int offset) {
+            long bit = 1L << offset;
+            if((bits[offset >> 6] & bit) == 0) {
+                bits[offset >> 6] |= bit;
+                size++;
+            }
+            return this;
+        }
+
+        public Block remove(int offset) {
+            long bit = 1L << offset;
+            if((bits[offset >> 6] & bit) != 0) {
+                bits[offset >> 6] &= ~bit;
+                size--;
+                if(size < BITMAP_MIN)
+                    return size == 0 ? null : new ArrayBlock(bits, size);
+            }
+            return this;
+        }
+
+        public int next(int from) {
+            if(from < 0)
+                from = 0;
+            int word = from >> 6;
+            if(word >= bits.length)
+                return -1;
+            long w = bits[word] & -1L << from;
+            while(w == 0) {
+                if(++word == bits.length)
+                    return -1;
+                w = bits[word];
+            }
+            return word << 6 | Long.numberOfTrailingZeros(w);
+        }
+
+        public int previous(int from) {
+            if(from < 0)
+                return -1;
+            int word = Math.min(from >> 6, bits.length - 1);
+            long w = from >> 6 >= bits.length ? bits[word] : bits[word] & -1L >>> 63 - (from & 63);
+            while(w == 0) {
+                if(--word < 0)
+                    return -1;
+                w = bits[word];
+            }
+            return word << 6 | 63 - Long.numberOfLeadingZeros(w);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.lightning.editor;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.FutureTask;
+
+import javax.imageio.ImageIO;
+
+/**
+ * The 16x16 grid of tile images that tile IDs index into.
+ *
+ * Decoding the PNG is by far the slowest part of loading, so the converted
+ * rasters are cached on disk under the SHA-256 of the PNG file and later
+ * loads of the same tileset read them back directly.
+ *
+ * The average colour of every tile, and of each quarter of it, is worked out
+ * once here for the editor's colour preview.
+ */
+public class Tileset {
+    public static final String DEFAULT_PATH = "assets/tileset.png";
+
+    private final TileCache cache;
+    private final int[] colors = new int[256]; // Average RGB of each tile
+    private final int[] quarterColors = new int[256*4]; // Average RGB of the top left, top right, bottom left and bottom right quarters
+
+    public Tileset(TileCache cache) {
+        this.cache = cache;
+        int size = cache.getTileSize(), half = Math.max(1, size/2);
+        for(int tile = 0; tile < 256; tile++) {
+            byte[] rgb = cache.getPixels(tile);
+            colors[tile] = average(rgb, size, 0, 0, size, size);
+            for(int q = 0; q < 4; q++) {
+                int x0 = (q & 1) == 0 ? 0 : size - half, y0 = (q & 2) == 0 ? 0 : size - half;
+                quarterColors[tile*4 + q] = average(rgb, size, x0, y0, x0 + half, y0 + half);
+            }
+        }
+    }
+
+    /** Returns the average 0xRRGGBB colour of the given pixel rectangle of a tile. */
+    private static int average(byte[] rgb, int size, int x0, int y0, int x1, int y1) {
+        long r = 0, g = 0, b = 0;
+        for(int y = y0; y < y1; y++) {
+            for(int x = x0, p = (y*size + x0)*TileCache.BYTES_PER_PIXEL; x < x1; x++) {
+                r += rgb[p++] & 0xFF;
+                g += rgb[p++] & 0xFF;
+                b += rgb[p++] & 0xFF;
+            }
+        }
+        long n = (long) (x1 - x0)*(y1 - y0);
+        return (int) ((r + n/2)/n) << 16 | (int) ((g + n/2)/n) << 8 | (int) ((b + n/2)/n);
+    }
+
+    /** Loads a tileset using the default cache directory, see {@link #defaultCacheDir()}. */
+    public static Tileset load(Path path) throws IOException {
+        return load(path, defaultCacheDir());
+    }
+
+    /** Loads a tileset, reusing or filling the raster cache in {@code cacheDir} unless it is null. */
+    public static Tileset load(Path path, Path cacheDir) throws IOException {
+        byte[] png = Files.readAllBytes(path);
+        Path cacheFile = null;
+        if(cacheDir != null) {
+            cacheFile = cacheDir.resolve("tiles-" + hash(png) + ".bin");
+            try(InputStream in = new BufferedInputStream(Files.newInputStream(cacheFile), 1 << 16)) {
+                TileCache cached = TileCache.read(in);
+                if(cached != null)
+                    return new Tileset(cached);
+            } catch(IOException e) {
+                // Missing or damaged; rebuilt below
+            }
+        }
+
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+        if(image == null)
+            throw new IOException("Not an image: " + path);
+        if(image.getWidth() < 16 || image.getWidth() != image.getHeight())
+            throw new IOException("Tileset must be a square grid of 16x16 tiles: " + path);
+        TileCache cache = new TileCache(image);
+        if(cacheFile != null) {
+            try {
+                Files.createDirectories(cacheDir);
+                Path tmp = Files.createTempFile(cacheDir, "tiles", ".tmp");
+                try(OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16)) {
+                    cache.write(out);
+                }
+                try {
+                    Files.move(tmp, cacheFile, StandardCopyOption.ATOMIC_MOVE);
+                } catch(IOException e) {
+                    Files.deleteIfExists(tmp);
+                }
+            } catch(IOException e) {
+                e.printStackTrace(); // The cache is only an optimization
+            }
+        }
+        return new Tileset(cache);
+    }
+
+    /**
+     * Starts loading a tileset on a background thread. The result is ready by the
+     * time it is needed unless something needs it right away.
+     */
+    public static FutureTask<Tileset> loadInBackground(final Path path) {
+        FutureTask<Tileset> task = new FutureTask<>(() -> load(path));
+        Thread thread = new Thread(task, "LeVIm tileset");
+        thread.setDaemon(true);
+        thread.start();
+        return task;
+    }
+
+    /**
+     * The directory set with {@code -Dlevim.tileCache}, or levim under the user's
+     * cache directory. Setting the property to an empty string disables the cache.
+     */
+    public static Path defaultCacheDir() {
+        String dir = System.getProperty("levim.tileCache");
+        if(dir != null)
+            return dir.isEmpty() ? null : Paths.get(dir);
+        String base = System.getenv("XDG_CACHE_HOME");
+        if(base == null || base.isEmpty())
+            return Paths.get(System.getProperty("user.home"), ".cache", "levim");
+        return Paths.get(base, "levim");
+    }
+
+    public int getTileSize() {
+        return cache.getTileSize();
+    }
+
+    public TileCache getCache() {
+        return cache;
+    }
+
+    /** Returns the average colour of {@code tile} as 0xRRGGBB. */
+    public int getColor(int tile) {
+        return colors[tile & 0xFF];
+    }
+
+    /** Returns the average colour of a quarter of {@code tile}: 0 top left, 1 top right, 2 bottom left, 3 bottom right. */
+    public int getQuarterColor(int tile, int quarter) {
+        return quarterColors[(tile & 0xFF)*4 + quarter];
+    }
+
+    private static String hash(byte[] data) {
+        StringBuilder hex = new StringBuilder();
+        for(byte b : LevelReader.newDigest().digest(data))
+            hex.append(String.format("%02x", b & 0xFF));
+        return hex.toString();
+    }
+}
@@ -0,0 +1,217 @@
+package com.lightning.editor;
+
+/**
+ * Undo/redo history of tile edits.
+ *
+ * Every changed tile is one {@code long} holding its position, old value and
+ * new value, kept in a ring buffer that grows up to a memory limit and then
+ * forgets the oldest steps. Steps are separated by marker entries; a real edit
+ * never has equal old and new values, so any entry that does is a marker. The
+ * marker before a step holds the layer that step edited.
+ */
+public class UndoJournal {
+    private static final int X_BITS = 28, Y_BITS = 20;
+    private static final int MIN_X = -(1 << X_BITS - 1), MAX_X = (1 << X_BITS - 1) - 1;
+    private static final int MIN_Y = -(1 << Y_BITS - 1), MAX_Y = (1 << Y_BITS - 1) - 1;
+
+    private final int maxEntries;
+    private long[] entries = new long[1024];
+    private int head = 0; // Ring index of the oldest entry
+    private int size = 0; // Number of entries, including ones that can be redone
+    private int applied = 0; // Entries before this are done, the rest can be redone
+    private boolean dropping = false; // The current step outgrew the buffer and is not being recorded
+    private int shiftX = 0, shiftY = 0; // Added to recorded positions to get current level positions
+    private int stepLayer = 0; // Layer of the step being recorded
+
+    private int cursorX, cursorY, cursorLayer;
+    private int lastX, lastY;
+    private int minX, minY, maxX, maxY;
+
+    public UndoJournal(long maxBytes) {
+        maxEntries = (int) Math.max(1024, Math.min(1 << 30, maxBytes / 8));
+    }
+
+    public void clear() {
+        head = size = applied = 0;
+        dropping = false;
+        shiftX = shiftY = 0;
+    }
+
+    /** Starts a new undo step on {@code layer}; edits recorded until the next call are undone together. */
+    public void beginStep(int layer) {
+        dropping = false;
+        stepLayer = layer;
+        if(applied > 0 && isMark(entry(applied - 1))) {
+            entries[(head + applied - 1) % entries.length] = mark(layer);
+            return;
+        }
+        size = applied;
+        append(mark(layer));
+        applied = size;
+    }
+
+    private static long mark(int layer) {
+        return (long) layer << 16;
+    }
+
+    private static boolean isMark(long e) {
+        return (e >> 8 & 0xFF) == (e & 0xFF);
+    }
+
+    private static int layerOf(long mark) {
+        return (int) (mark >> 16 & 0xFF);
+    }
+
+    /** Must be called when the level grows left or up, so recorded positions stay valid. */
+    public void shift(int cols, int rows) {
+        shiftX += cols;
+        shiftY += rows;
+    }
+
+    public void record(int x, int y, byte oldValue, byte newValue) {
+        if(oldValue == newValue || dropping)
+            return;
+        long rx = (long) x - shiftX, ry = (long) y - shiftY;
+        if(rx < MIN_X || rx > MAX_X || ry < MIN_Y || ry > MAX_Y) {
+            // Too far out to encode; forget everything rather than keep a history with a hole in it
+            clear();
+            dropping = true;
+            return;
+        }
+        size = applied;
+        if(applied == 0) // Edits made before any step began
+            append(mark(stepLayer));
+        append((rx & (1L << X_BITS) - 1) << 36 | (ry & (1L << Y_BITS) - 1) << 16 | (oldValue & 0xFFL) << 8 | newValue & 0xFFL);
+        applied = size;
+    }
+
+    /** Reverts the most recent step in {@code level}. Returns false if there is nothing to undo. */
+    public boolean undo(Level level) {
+        while(applied > 0 && isMark(entry(applied - 1))) // Skip empty steps
+            applied--;
+        if(applied == 0)
+            return false;
+        int start = applied - 1;
+        while(!isMark(entry(start)))
+            start--;
+        cursorLayer = layerOf(entry(start));
+        LevelGrid layer = cursorLayer < level.getLayerCount() ? level.getLayer(cursorLayer) : null;
+        resetBounds();
+        while(applied > start + 1) {
+            long e = entry(--applied);
+            apply(layer, e, (byte) (e >> 8));
+            cursorX = lastX;
+            cursorY = lastY;
+        }
+        applied = start;
+        return true;
+    }
+
+    /** Re-applies the step after the current one. Returns false if there is nothing to redo. */
+    public boolean redo(Level level) {
+        while(applied < size && isMark(entry(applied)) && (applied + 1 == size || isMark(entry(applied + 1))))
+            applied++;
+        if(applied == size)
+            return false;
+        cursorLayer = layerOf(entry(applied++));
+        LevelGrid layer = cursorLayer < level.getLayerCount() ? level.getLayer(cursorLayer) : null;
+        resetBounds();
+        boolean first = true;
+        while(applied < size && !isMark(entry(applied))) {
+            long e = entry(applied++);
+            apply(layer, e, (byte) e);
+            if(first) {
+                first = false;
+                cursorX = lastX;
+                cursorY = lastY;
+            }
+        }
+        return true;
+    }
+
+    /** Where the cursor belongs after the last undo or redo: the first tile of the step. */
+    public int getCursorX() {
+        return cursorX;
+    }
+
+    public int getCursorY() {
+        return cursorY;
+    }
+
+    /** The layer the last undo or redo changed. */
+    public int getCursorLayer() {
+        return cursorLayer;
+    }
+
+    /** Bounds of the tiles changed by the last undo or redo, inclusive. */
+    public int getMinX() {
+        return minX;
+    }
+
+    public int getMinY() {
+        return minY;
+    }
+
+    public int getMaxX() {
+        return maxX;
+    }
+
+    public int getMaxY() {
+        return maxY;
+    }
+
+    private void resetBounds() {
+        minX = minY = Integer.MAX_VALUE;
+        maxX = maxY = Integer.MIN_VALUE;
+    }
+
+    private void apply(LevelGrid level, long e, byte value) {
+        int x = (int) (e >> 36) + shiftX; // Sign-extends the position
+        int y = (int) (e << 28 >> 44) + shiftY;
+        if(level != null && level.contains(x, y))
+            level.set(x, y, value);
+        minX = Math.min(minX, x);
+        minY = Math.min(minY, y);
+        maxX = Math.max(maxX, x);
+        maxY = Math.max(maxY, y);
+        lastX = x;
+        lastY = y;
+    }
+
+    private long entry(int i) {
+        return entries[(head + i) % entries.length];
+    }
+
+    private void append(long e) {
+        if(size == entries.length) {
+            if(entries.length < maxEntries) {
+                long[] bigger = new long[(int) Math.min(maxEntries, entries.length * 2L)];
+                for(int i = 0; i < size; i++)
+                    bigger[i] = entry(i);
+                entries = bigger;
+                head = 0;
+            } else if(!dropOldestStep(isMark(e))) {
+                return;
+            }
+        }
+        entries[(head + size) % entries.length] = e;
+        size++;
+    }
+
+    /** Makes room by forgetting the oldest step. Returns false if the step being recorded has to go. */
+    private boolean dropOldestStep(boolean startingStep) {
+        int end = 1;
+        while(end < size && !isMark(entry(end)))
+            end++;
+        if(end == size && !startingStep) {
+            // The step being recorded fills the whole buffer by itself
+            clear();
+            dropping = true;
+            return false;
+        }
+        head = (head + end) % entries.length;
+        size -= end;
+        applied -= end;
+        return true;
+    }
+}
@@ -0,0 +1,86 @@
+package com.lightning.editor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ChunkCodecTest {
+    private final ChunkCodec codec = new ChunkCodec();
+
+    private byte[] roundTrip(byte[] chunk, int expectedEncoding) {
+        byte[] encoded = new byte[ChunkCodec.MAX_ENCODED];
+        int encoding = codec.encode(chunk, encoded);
+        if(expectedEncoding >= 0)
+            assertEquals(expectedEncoding, encoding);
+        byte[] decoded = codec.decode(encoding, encoded, 0, codec.length());
+        assertArrayEquals(chunk, decoded);
+        return decoded;
+    }
+
+    @Test
+    public void emptyChunkStoresNothing() {
+        roundTrip(new byte[ChunkCodec.CHUNK_BYTES], ChunkCodec.EMPTY);
+        assertEquals(0, codec.length());
+    }
+
+    @Test
+    public void uniformChunk() {
+        byte[] chunk = new byte[ChunkCodec.CHUNK_BYTES];
+        Arrays.fill(chunk, (byte) 7);
+        roundTrip(chunk, -1);
+    }
+
+    @Test
+    public void randomChunkFallsBackToRaw() {
+        byte[] chunk = new byte[ChunkCodec.CHUNK_BYTES];
+        new Random(1).nextBytes(chunk);
+        roundTrip(chunk, ChunkCodec.RAW);
+        assertEquals(ChunkCodec.CHUNK_BYTES, codec.length());
+    }
+
+    @Test
+    public void patterns() {
+        Random random = new Random(2);
+        for(int round = 0; round < 200; round++) {
+            byte[] chunk = new byte[ChunkCodec.CHUNK_BYTES];
+            int tiles = 1 + random.nextInt(8);
+            int runs = random.nextInt(300);
+            for(int i = 0; i < runs; i++) {
+                int start = random.nextInt(chunk.length);
+                int end = Math.min(chunk.length, start + random.nextInt(600));
+                Arrays.fill(chunk, start, end, (byte) random.nextInt(tiles));
+            }
+            roundTrip(chunk, -1);
+        }
+    }
+
+    @Test
+    public void decodesHandwrittenRle() {
+        byte[] in = new byte[ChunkCodec.CHUNK_BYTES / 256 * 2];
+        for(int i = 0; i < in.length; i += 2) {
+            in[i] = (byte) 255;
+            in[i + 1] = (byte) (i / 2);
+        }
+        byte[] chunk = codec.decode(ChunkCodec.RLE, in, 0, in.length);
+        for(int i = 0; i < chunk.length; i++)
+            assertEquals((byte) (i / 256), chunk[i]);
+    }
+
+    @Test
+    public void rejectsMalformedData() {
+        byte[] in = new byte[ChunkCodec.MAX_ENCODED];
+        assertNull(codec.decode(ChunkCodec.EMPTY, in, 0, 1));
+        assertNull(codec.decode(ChunkCodec.RAW, in, 0, ChunkCodec.CHUNK_BYTES - 1));
+        assertNull(codec.decode(ChunkCodec.RLE, in, 0, 3)); // Odd length
+        assertNull(codec.decode(ChunkCodec.RLE, in, 0, 2)); // Too short
+        in[0] = (byte) 255;
+        assertNull(codec.decode(ChunkCodec.RLE, in, 0, ChunkCodec.CHUNK_BYTES / 256 * 2 + 2)); // Too long
+        new Random(3).nextBytes(in);
+        assertNull(codec.decode(ChunkCodec.DEFLATE, in, 0, 100));
+    }
+}
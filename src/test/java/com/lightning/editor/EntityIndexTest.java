@@ -0,0 +1,104 @@
+package com.lightning.editor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/** Checks queries against a scan of every entity. */
+public class EntityIndexTest {
+    private final Random random = new Random(7);
+    private final EntityIndex index = new EntityIndex();
+    private final List<Entity> all = new ArrayList<>();
+
+    private Entity randomEntity() {
+        int x = random.nextInt(2000) - 200, y = random.nextInt(1000) - 100;
+        switch(random.nextInt(4)) {
+        case 0:
+            return Entity.trigger(x, y, 1 + random.nextInt(40), 1 + random.nextInt(40), random.nextInt(100));
+        case 1: // Spans more cells than are indexed
+            return Entity.trigger(x, y, 200 + random.nextInt(2000), 1 + random.nextInt(300), random.nextInt(100));
+        default:
+            return Entity.sprite(x, y, random.nextInt(100));
+        }
+    }
+
+    private void add(int count) {
+        for(int i = 0; i < count; i++) {
+            Entity e = randomEntity();
+            index.add(e);
+            all.add(e);
+        }
+    }
+
+    private void check(int x0, int y0, int x1, int y1) {
+        Map<Entity, Integer> expected = new IdentityHashMap<>();
+        for(Entity e : all)
+            if(e.getX() <= x1 && (long) e.getX() + e.getWidth() > x0 && e.getY() <= y1 && (long) e.getY() + e.getHeight() > y0)
+                expected.put(e, 1);
+        Map<Entity, Integer> actual = new IdentityHashMap<>();
+        index.query(x0, y0, x1, y1, e -> actual.merge(e, 1, Integer::sum));
+        assertEquals("(" + x0 + ", " + y0 + ")-(" + x1 + ", " + y1 + ")", expected, actual);
+    }
+
+    private void checkRandomQueries() {
+        assertEquals(all.size(), index.size());
+        for(int i = 0; i < 500; i++) {
+            int x = random.nextInt(2400) - 300, y = random.nextInt(1200) - 200;
+            int size = random.nextInt(4) == 0 ? 0 : random.nextInt(random.nextBoolean() ? 40 : 1500);
+            check(x, y, x + size, y + random.nextInt(size + 1));
+        }
+        check(Integer.MIN_VALUE / 2, Integer.MIN_VALUE / 2, Integer.MAX_VALUE / 2, Integer.MAX_VALUE / 2);
+    }
+
+    @Test
+    public void queriesMatchScan() {
+        add(2000);
+        checkRandomQueries();
+    }
+
+    @Test
+    public void queriesMatchScanAfterRemovals() {
+        add(2000);
+        for(int i = 0; i < 800; i++)
+            assertTrue(index.remove(all.remove(random.nextInt(all.size()))));
+        assertFalse(index.remove(Entity.sprite(0, 0, 0)));
+        add(300);
+        checkRandomQueries();
+    }
+
+    @Test
+    public void copiesAreIndependent() {
+        add(500);
+        EntityIndex copy = index.copy();
+        Entity removed = all.remove(0);
+        index.remove(removed);
+        checkRandomQueries();
+        assertEquals(all.size() + 1, copy.size());
+        Entity[] found = new Entity[1];
+        copy.query(removed.getX(), removed.getY(), removed.getX(), removed.getY(), e -> {
+            if(e == removed)
+                found[0] = e;
+        });
+        assertSame(removed, found[0]);
+    }
+
+    @Test
+    public void atPrefersSprites() {
+        Entity trigger = Entity.trigger(0, 0, 10, 10, 1);
+        Entity sprite = Entity.sprite(5, 5, 2);
+        index.add(trigger);
+        index.add(sprite);
+        assertSame(sprite, index.at(5, 5));
+        assertSame(trigger, index.at(6, 5));
+        assertEquals(null, index.at(10, 10));
+    }
+}
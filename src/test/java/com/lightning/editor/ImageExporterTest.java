@@ -0,0 +1,118 @@
+package com.lightning.editor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Adler32;
+
+import javax.imageio.ImageIO;
+
+import org.junit.AfterClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Reads exported images back and compares them with the tiles they should show. */
+public class ImageExporterTest {
+    private static final int TILE_SIZE = 3;
+    private static final ForkJoinPool pool = new ForkJoinPool(4);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final TileCache cache = new TileCache(tileset());
+    private final ImageExporter exporter = new ImageExporter(cache, pool);
+
+    @AfterClass
+    public static void stopPool() {
+        pool.shutdown();
+    }
+
+    /** A tileset where every pixel of every tile has its own color. */
+    private static BufferedImage tileset() {
+        BufferedImage image = new BufferedImage(16 * TILE_SIZE, 16 * TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+        for(int x = 0; x < image.getWidth(); x++)
+            for(int y = 0; y < image.getHeight(); y++)
+                image.setRGB(x, y, 0xFF000000 | x << 16 | y << 8 | (x * 7 + y) & 0xFF);
+        return image;
+    }
+
+    private static Level level(int width, int height) {
+        Random random = new Random(8);
+        LevelGrid bottom = new LevelGrid(width, height);
+        LevelGrid top = new LevelGrid(width, height);
+        for(int x = 0; x < width; x++) {
+            for(int y = 0; y < height; y++) {
+                bottom.set(x, y, (byte) random.nextInt(256));
+                if(random.nextInt(3) == 0)
+                    top.set(x, y, (byte) random.nextInt(256));
+            }
+        }
+        return new Level(Arrays.asList(bottom, top), 1);
+    }
+
+    /** Checks that {@code path} shows the tiles of {@code level} from (x0, y0) on. */
+    private void assertShows(Level level, int x0, int y0, int cols, int rows, Path path) throws IOException {
+        BufferedImage image = ImageIO.read(path.toFile());
+        assertNotNull(image);
+        assertEquals(cols * TILE_SIZE, image.getWidth());
+        assertEquals(rows * TILE_SIZE, image.getHeight());
+        for(int px = 0; px < image.getWidth(); px++) {
+            for(int py = 0; py < image.getHeight(); py++) {
+                byte[] tile = cache.getPixels(level.getVisibleTile(x0 + px / TILE_SIZE, y0 + py / TILE_SIZE));
+                int p = (py % TILE_SIZE * TILE_SIZE + px % TILE_SIZE) * TileCache.BYTES_PER_PIXEL;
+                int expected = (tile[p] & 0xFF) << 16 | (tile[p + 1] & 0xFF) << 8 | tile[p + 2] & 0xFF;
+                assertEquals("Pixel (" + px + ", " + py + ")", expected, image.getRGB(px, py) & 0xFFFFFF);
+            }
+        }
+    }
+
+    @Test
+    public void exportsWholeLevel() throws IOException {
+        Level level = level(150, 70);
+        Path path = folder.getRoot().toPath().resolve("level.png");
+        exporter.export(level, path);
+        assertShows(level, 0, 0, 150, 70, path);
+    }
+
+    @Test
+    public void leavesOutHiddenLayers() throws IOException {
+        Level level = level(20, 20);
+        level.setVisible(1, false);
+        Path path = folder.getRoot().toPath().resolve("bottom.png");
+        exporter.export(level, path);
+        assertShows(level, 0, 0, 20, 20, path);
+    }
+
+    @Test
+    public void exportsSheets() throws IOException {
+        Level level = level(100, 51);
+        Path path = folder.getRoot().toPath().resolve("sheet.png");
+        exporter.export(level, path, 3, 2);
+        int[] xs = {0, 33, 66, 100}, ys = {0, 25, 51};
+        for(int sx = 0; sx < 3; sx++)
+            for(int sy = 0; sy < 2; sy++)
+                assertShows(level, xs[sx], ys[sy], xs[sx + 1] - xs[sx], ys[sy + 1] - ys[sy], path.resolveSibling("sheet-" + sx + "-" + sy + ".png"));
+    }
+
+    @Test
+    public void combinesAdlerChecksums() {
+        Random random = new Random(9);
+        for(int round = 0; round < 100; round++) {
+            byte[] data = new byte[random.nextInt(200000)];
+            random.nextBytes(data);
+            int split = random.nextInt(data.length + 1);
+            Adler32 whole = new Adler32(), first = new Adler32(), second = new Adler32();
+            whole.update(data);
+            first.update(data, 0, split);
+            second.update(data, split, data.length - split);
+            assertEquals(whole.getValue(), ImageExporter.combineAdler(first.getValue(), second.getValue(), data.length - split));
+        }
+    }
+}
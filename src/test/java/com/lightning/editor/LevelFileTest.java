@@ -0,0 +1,198 @@
+package com.lightning.editor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LevelFileTest {
+    private static final int HEADER_LENGTH = 20; // Up to the entity counts of a chunked file
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /** A level with two layers of scattered tiles, a few solid chunks and some entities. */
+    private static Level sample(int width, int height) {
+        Random random = new Random(width * 31 + height);
+        LevelGrid bottom = new LevelGrid(width, height);
+        LevelGrid top = new LevelGrid(width, height);
+        for(int i = 0; i < width * height / 8; i++)
+            bottom.set(random.nextInt(width), random.nextInt(height), (byte) (1 + random.nextInt(5)));
+        top.fill(0, 0, Math.min(width, 100) - 1, height / 2, (byte) 9, null);
+        Level level = new Level(Arrays.asList(bottom, top), 0.5f);
+        level.addEntity(Entity.sprite(3, 4, 17));
+        level.addEntity(Entity.sprite(width - 1, height - 1, 0xFFFF));
+        level.addEntity(Entity.trigger(10, 2, 300, 7, 42));
+        return level;
+    }
+
+    private static void assertSameLevel(Level expected, Level actual) {
+        assertEquals(expected.getLayerCount(), actual.getLayerCount());
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        assertEquals(expected.getScrollSpeed(), actual.getScrollSpeed(), 0);
+        for(int layer = 0; layer < expected.getLayerCount(); layer++)
+            for(int x = 0; x < expected.getWidth(); x++)
+                for(int y = 0; y < expected.getHeight(); y++)
+                    if(expected.getLayer(layer).get(x, y) != actual.getLayer(layer).get(x, y))
+                        fail("Layer " + layer + " differs at (" + x + ", " + y + ")");
+        assertSameEntities(expected.getEntities().getSprites(), actual.getEntities().getSprites());
+        assertSameEntities(expected.getEntities().getTriggers(), actual.getEntities().getTriggers());
+        assertNull(actual.getChunkError());
+    }
+
+    private static void assertSameEntities(List<Entity> expected, List<Entity> actual) {
+        assertEquals(expected.size(), actual.size());
+        for(int i = 0; i < expected.size(); i++) {
+            Entity a = expected.get(i), b = actual.get(i);
+            assertEquals(a.getKind(), b.getKind());
+            assertEquals(a.getX(), b.getX());
+            assertEquals(a.getY(), b.getY());
+            assertEquals(a.getWidth(), b.getWidth());
+            assertEquals(a.getHeight(), b.getHeight());
+            assertEquals(a.getId(), b.getId());
+        }
+    }
+
+    private Level roundTrip(Level level, int version) throws IOException {
+        Path path = folder.getRoot().toPath().resolve("v" + version + ".lvl");
+        LevelWriter.write(level, path, version);
+        Level read = LevelReader.read(path);
+        assertSameLevel(level, read);
+        return read;
+    }
+
+    private byte[] bytes(Level level, int version) throws IOException {
+        Path path = folder.newFile().toPath();
+        LevelWriter.write(level, path, version);
+        return Files.readAllBytes(path);
+    }
+
+    private static LevelFormatException.Reason failure(byte[] data) {
+        try {
+            LevelReader.read(ByteBuffer.wrap(data));
+        } catch(LevelFormatException e) {
+            return e.getReason();
+        }
+        fail("Damaged file was read");
+        return null;
+    }
+
+    @Test
+    public void version0() throws IOException {
+        roundTrip(sample(300, 200), 0);
+    }
+
+    @Test
+    public void version1() throws IOException {
+        roundTrip(sample(300, 200), 1);
+    }
+
+    @Test
+    public void version2() throws IOException {
+        roundTrip(sample(300, 200), 2);
+    }
+
+    @Test
+    public void sizesOffChunkBoundaries() throws IOException {
+        for(int version = 0; version <= 2; version++) {
+            roundTrip(sample(1, 1), version);
+            roundTrip(sample(65, 63), version);
+        }
+        roundTrip(sample(1000, 1000), 2);
+    }
+
+    @Test
+    public void readsOwnOutputAsVersion2Again() throws IOException {
+        Level level = roundTrip(sample(300, 200), 1);
+        roundTrip(level, 2);
+    }
+
+    @Test
+    public void resaveCopiesUnchangedChunks() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("level.lvl");
+        Level level = sample(500, 300);
+        LevelWriter.write(level, path);
+        Level read = LevelReader.read(path);
+        read.getLayer(0).set(130, 70, (byte) 33);
+        read.getLayer(1).fill(0, 0, 63, 63, (byte) 0, null);
+        read.addEntity(Entity.sprite(5, 5, 1));
+        LevelWriter.write(read, path);
+        assertSameLevel(read, LevelReader.read(path));
+        LevelWriter.write(read, path);
+        assertSameLevel(read, LevelReader.read(path));
+    }
+
+    @Test
+    public void detectsChangedContents() throws IOException {
+        for(int version = 0; version <= 2; version++) {
+            byte[] data = bytes(sample(100, 100), version);
+            data[version == 0 ? 12 : HEADER_LENGTH - 1] ^= 1; // A tile, or the low byte of the scroll speed
+            assertEquals(LevelFormatException.Reason.BAD_CHECKSUM, failure(data));
+        }
+    }
+
+    @Test
+    public void detectsChangedIndex() throws IOException {
+        byte[] data = bytes(sample(100, 100), 2);
+        data[data.length - LevelReader.DIGEST_LENGTH - 5] ^= 1; // Last byte of the last index entry's hash
+        assertEquals(LevelFormatException.Reason.BAD_CHECKSUM, failure(data));
+    }
+
+    @Test
+    public void version1DetectsChangedChunk() throws IOException {
+        Level level = sample(100, 100);
+        byte[] data = bytes(level, 1);
+        data[HEADER_LENGTH + 4 + 2 * LevelReader.SPRITE_LENGTH + LevelReader.TRIGGER_LENGTH] ^= 1;
+        assertEquals(LevelFormatException.Reason.BAD_CHECKSUM, failure(data));
+    }
+
+    @Test
+    public void version2ReadsDamagedChunkAsEmpty() throws IOException {
+        LevelGrid tiles = new LevelGrid(128, 64);
+        Random random = new Random(4);
+        for(int x = 0; x < 64; x++)
+            for(int y = 0; y < 64; y++)
+                tiles.set(x, y, (byte) random.nextInt(256)); // Stored raw
+        tiles.set(100, 10, (byte) 5);
+        Level level = new Level(tiles);
+        byte[] data = bytes(level, 2);
+        data[HEADER_LENGTH + 4 + 100] ^= 1; // Inside the first chunk
+
+        Level read = LevelReader.read(ByteBuffer.wrap(data));
+        assertNull(read.getChunkError());
+        assertEquals(5, read.getTiles().get(100, 10));
+        assertNull(read.getChunkError());
+        assertEquals(0, read.getTiles().get(0, 0));
+        LevelFormatException error = read.getChunkError();
+        assertNotNull(error);
+        assertEquals(LevelFormatException.Reason.CORRUPT_CHUNK, error.getReason());
+    }
+
+    @Test
+    public void rejectsTruncatedFiles() throws IOException {
+        for(int version = 0; version <= 2; version++) {
+            byte[] data = bytes(sample(100, 100), version);
+            for(int length : new int[] {0, 3, 6, 30, data.length / 2, data.length - 1}) {
+                try {
+                    LevelReader.read(ByteBuffer.wrap(data, 0, length));
+                    fail("Read " + length + " of " + data.length + " bytes of a version " + version + " file");
+                } catch(LevelFormatException e) {
+                    // Expected
+                }
+            }
+        }
+    }
+}
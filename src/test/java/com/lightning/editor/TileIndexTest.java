@@ -0,0 +1,122 @@
+package com.lightning.editor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/** Checks the index against a scan of every tile. */
+public class TileIndexTest {
+    private static final byte[] TILES = {1, 2, 3, (byte) 200};
+    // Search order: bands of 64 rows, then columns, then rows
+    private static final Comparator<long[]> SEARCH_ORDER = Comparator.<long[]>comparingLong(p -> Math.floorDiv(p[1], 64))
+            .thenComparingLong(p -> p[0]).thenComparingLong(p -> p[1]);
+
+    private final Random random = new Random(6);
+
+    private static long pack(long x, long y) {
+        return x << 32 | y & 0xFFFFFFFFL;
+    }
+
+    private static List<long[]> scan(LevelGrid level, byte tile) {
+        List<long[]> found = new ArrayList<>();
+        for(int x = 0; x < level.getWidth(); x++)
+            for(int y = 0; y < level.getHeight(); y++)
+                if(level.get(x, y) == tile)
+                    found.add(new long[] {x, y});
+        Collections.sort(found, SEARCH_ORDER);
+        return found;
+    }
+
+    /** The closest tile in {@code found} after (or before) (x, y), wrapping around, or -1. */
+    private static long expectedFind(List<long[]> found, int x, int y, boolean forward) {
+        if(found.isEmpty())
+            return -1;
+        long[] from = {x, y};
+        long[] best = null;
+        for(long[] p : found) {
+            int order = SEARCH_ORDER.compare(p, from);
+            if(forward ? order > 0 && (best == null || SEARCH_ORDER.compare(p, best) < 0)
+                    : order < 0 && (best == null || SEARCH_ORDER.compare(p, best) > 0))
+                best = p;
+        }
+        if(best == null)
+            best = found.get(forward ? 0 : found.size() - 1);
+        return pack(best[0], best[1]);
+    }
+
+    private void check(LevelGrid level) {
+        TileIndex index = level.getIndex();
+        for(byte tile : TILES) {
+            List<long[]> found = scan(level, tile);
+            assertEquals(found.size(), index.count(tile));
+            long[] expected = new long[found.size()];
+            for(int i = 0; i < expected.length; i++)
+                expected[i] = pack(found.get(i)[0], found.get(i)[1]);
+            assertArrayEquals(expected, index.positions(tile));
+            for(int i = 0; i < 200; i++) {
+                int x = random.nextInt(level.getWidth()), y = random.nextInt(level.getHeight());
+                assertEquals(expectedFind(found, x, y, true), index.find(tile, x, y, true));
+                assertEquals(expectedFind(found, x, y, false), index.find(tile, x, y, false));
+            }
+            for(long[] p : found) { // Starting on a match must skip it
+                assertEquals(expectedFind(found, (int) p[0], (int) p[1], true), index.find(tile, (int) p[0], (int) p[1], true));
+                assertEquals(expectedFind(found, (int) p[0], (int) p[1], false), index.find(tile, (int) p[0], (int) p[1], false));
+            }
+        }
+    }
+
+    private void scatter(LevelGrid level, int count) {
+        for(int i = 0; i < count; i++)
+            level.set(random.nextInt(level.getWidth()), random.nextInt(level.getHeight()), random.nextInt(4) == 0 ? 0 : TILES[random.nextInt(TILES.length)]);
+    }
+
+    @Test
+    public void emptyLevel() {
+        check(new LevelGrid(100, 100));
+    }
+
+    @Test
+    public void builtFromExistingTiles() {
+        LevelGrid level = new LevelGrid(300, 200);
+        scatter(level, 3000);
+        level.fill(64, 64, 127, 127, (byte) 2, null); // A block full enough for a bitmap
+        check(level);
+    }
+
+    @Test
+    public void followsEdits() {
+        LevelGrid level = new LevelGrid(300, 200);
+        scatter(level, 500);
+        level.getIndex();
+        scatter(level, 2000);
+        level.fill(10, 10, 90, 80, (byte) 1, null);
+        check(level);
+        level.fill(20, 20, 80, 70, (byte) 0, null); // Bitmaps shrinking back
+        scatter(level, 500);
+        check(level);
+    }
+
+    @Test
+    public void followsGrowth() {
+        LevelGrid level = new LevelGrid(150, 130);
+        scatter(level, 1000);
+        level.getIndex();
+        level.growLeft(64); // Keeps blocks aligned
+        level.growUp(128);
+        scatter(level, 200);
+        check(level);
+        level.growLeft(5); // Doesn't
+        level.growUp(17);
+        level.growRight(30);
+        level.growDown(40);
+        scatter(level, 200);
+        check(level);
+    }
+}
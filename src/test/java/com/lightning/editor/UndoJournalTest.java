@@ -0,0 +1,133 @@
+package com.lightning.editor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class UndoJournalTest {
+    private static final int WIDTH = 200, HEIGHT = 150;
+
+    private final Level level = new Level(Arrays.asList(new LevelGrid(WIDTH, HEIGHT), new LevelGrid(WIDTH, HEIGHT)), 1);
+    private final UndoJournal journal = new UndoJournal(1 << 20);
+    private final Random random = new Random(5);
+
+    private void set(int layer, int x, int y, byte value) {
+        LevelGrid tiles = level.getLayer(layer);
+        journal.record(x, y, tiles.get(x, y), value);
+        tiles.set(x, y, value);
+    }
+
+    /** Makes one step of random edits on a random layer. */
+    private void randomStep() {
+        int layer = random.nextInt(level.getLayerCount());
+        journal.beginStep(layer);
+        int x = random.nextInt(level.getWidth()), y = random.nextInt(level.getHeight());
+        set(layer, x, y, (byte) (level.getLayer(layer).get(x, y) + 1 & 3)); // At least one real change, or undo skips the step
+        int edits = random.nextInt(50);
+        for(int i = 0; i < edits; i++)
+            set(layer, random.nextInt(level.getWidth()), random.nextInt(level.getHeight()), (byte) random.nextInt(4));
+    }
+
+    private byte[][] state() {
+        byte[][] state = new byte[level.getLayerCount()][level.getWidth() * level.getHeight()];
+        for(int layer = 0; layer < level.getLayerCount(); layer++)
+            for(int x = 0; x < level.getWidth(); x++)
+                level.getLayer(layer).getColumn(x, 0, state[layer], x * level.getHeight(), level.getHeight());
+        return state;
+    }
+
+    @Test
+    public void undoesAndRedoesEveryStep() {
+        List<byte[][]> states = new ArrayList<>();
+        states.add(state());
+        for(int step = 0; step < 40; step++) {
+            randomStep();
+            states.add(state());
+        }
+        for(int step = states.size() - 2; step >= 0; step--) {
+            assertTrue(journal.undo(level));
+            assertArrayEquals(states.get(step), state());
+        }
+        assertFalse(journal.undo(level));
+        for(int step = 1; step < states.size(); step++) {
+            assertTrue(journal.redo(level));
+            assertArrayEquals(states.get(step), state());
+        }
+        assertFalse(journal.redo(level));
+    }
+
+    @Test
+    public void newEditDropsRedo() {
+        randomStep();
+        byte[][] first = state();
+        randomStep();
+        assertTrue(journal.undo(level));
+        randomStep();
+        byte[][] branch = state();
+        assertFalse(journal.redo(level));
+        assertTrue(journal.undo(level));
+        assertArrayEquals(first, state());
+        assertTrue(journal.redo(level));
+        assertArrayEquals(branch, state());
+    }
+
+    @Test
+    public void emptyStepsAreSkipped() {
+        byte[][] before = state();
+        journal.beginStep(0);
+        set(0, 10, 20, (byte) 3);
+        journal.beginStep(1);
+        journal.beginStep(0);
+        set(0, 10, 20, level.getLayer(0).get(10, 20)); // Not a change
+        assertTrue(journal.undo(level));
+        assertArrayEquals(before, state());
+        assertEquals(0, journal.getCursorLayer());
+        assertEquals(10, journal.getCursorX());
+        assertEquals(20, journal.getCursorY());
+        assertFalse(journal.undo(level));
+    }
+
+    @Test
+    public void followsLevelGrowingLeftAndUp() {
+        journal.beginStep(1);
+        set(1, 5, 6, (byte) 7);
+        for(int layer = 0; layer < level.getLayerCount(); layer++) {
+            level.getLayer(layer).growLeft(70);
+            level.getLayer(layer).growUp(3);
+        }
+        journal.shift(70, 3);
+        assertEquals(7, level.getLayer(1).get(75, 9));
+        assertTrue(journal.undo(level));
+        assertEquals(0, level.getLayer(1).get(75, 9));
+        assertEquals(75, journal.getCursorX());
+        assertEquals(9, journal.getCursorY());
+        assertTrue(journal.redo(level));
+        assertEquals(7, level.getLayer(1).get(75, 9));
+    }
+
+    @Test
+    public void forgetsOldestStepsPastTheLimit() {
+        for(int step = 0; step < 2000; step++) { // 1.6 MB of edits, past the limit
+            journal.beginStep(0);
+            for(int i = 0; i < 100; i++)
+                set(0, i, step % HEIGHT, (byte) (1 + step % 2));
+        }
+        byte[][] last = state();
+        int undone = 0;
+        while(journal.undo(level))
+            undone++;
+        assertTrue(undone > 0 && undone < 2000);
+        while(journal.redo(level))
+            undone--;
+        assertEquals(0, undone);
+        assertArrayEquals(last, state());
+    }
+}